@@ -18,6 +18,8 @@ import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.util.messages.MessageBusConnection;
 import floobits.common.EditorEventHandler;
 import floobits.common.Ignore;
+import floobits.common.RunLater;
+import floobits.common.SelectionPublisher;
 import floobits.common.interfaces.IFile;
 import floobits.impl.ContextImpl;
 import floobits.impl.DocImpl;
@@ -28,11 +30,11 @@ import floobits.utilities.IntelliUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Listener implements BulkFileListener, DocumentListener, SelectionListener, FileDocumentManagerListener, VisibleAreaListener, CaretListener {
+    // Set once we've joined. Files we're writing to ourselves are in context.suppressed instead.
     public final AtomicBoolean isListening = new AtomicBoolean(false);
     public final AtomicBoolean isSaving = new AtomicBoolean(false);
     private final ContextImpl context;
@@ -41,7 +43,10 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
     private MessageBusConnection connection = ApplicationManager.getApplication().getMessageBus().connect();
     private EditorEventMulticaster em = EditorFactory.getInstance().getEventMulticaster();
     private String oldRenamePath;
-    private ArrayList<ArrayList<Integer>> ranges = new ArrayList<ArrayList<Integer>>();
+    private SelectionPublisher selectionPublisher;
+    // The editor the caret or selection last changed in, and its selected ranges.
+    private Editor selectionEditor;
+    private final SelectionPublisher.Selection selected = new SelectionPublisher.Selection();
 
 
     public Listener(ContextImpl context) {
@@ -50,6 +55,12 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
 
     public synchronized void start(final EditorEventHandler editorManager) {
         this.editorManager = editorManager;
+        selectionPublisher = new SelectionPublisher(context, editorManager, new RunLater<SelectionPublisher.Selection>() {
+            @Override
+            public void run(SelectionPublisher.Selection selection) {
+                sampleSelection(selection);
+            }
+        });
         connection.subscribe(VirtualFileManager.VFS_CHANGES, this);
         connection.subscribe(AppTopics.FILE_DOCUMENT_SYNC, this);
         em.addDocumentListener(this);
@@ -127,6 +138,9 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
             Flog.info("No virtual file for document %s", document);
             return;
         }
+        if (context.suppressed.isSuppressed(virtualFile.getPath())) {
+            return;
+        }
         editorManager.change(new FileImpl(virtualFile));
     }
 
@@ -140,8 +154,12 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
 
     @Override
     public void before(@NotNull List<? extends VFileEvent> events) {
+        Ignore ignoreTree = context.getIgnoreTree();
         for (VFileEvent event : events) {
             if (event instanceof VFileDeleteEvent) {
+                if (ignoreTree != null) {
+                    ignoreTree.remove(event.getPath());
+                }
                 Flog.info("deleting a file %s", event.getPath());
                 editorManager.deleteDirectory(IntelliUtils.getAllNestedFilePaths(event.getFile()));
                 continue;
@@ -158,12 +176,9 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
 
     @Override
     public void after(@NotNull List<? extends VFileEvent> events) {
-        for (VFileEvent event : events) {
-            IFile virtualFile = new FileImpl(event.getFile());
-            if (Ignore.isIgnoreFile(virtualFile) && !context.isIgnored(virtualFile)) {
-                context.refreshIgnores();
-                break;
-            }
+        Ignore ignoreTree = context.getIgnoreTree();
+        if (ignoreTree != null) {
+            updateIgnores(ignoreTree, events);
         }
         if (!isListening.get()) {
             return;
@@ -220,7 +235,60 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
             if (event instanceof VFileContentChangeEvent) {
                 ArrayList<IFile> changedFiles = IntelliUtils.getAllValidNestedFiles(context, event.getFile());
                 for (IFile file : changedFiles) {
-                    editorManager.change(file);
+                    if (!context.suppressed.isSuppressed(file.getPath())) {
+                        editorManager.change(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Patches the ignore tree instead of rebuilding it. Deletes are handled in before, while the files still exist.
+     */
+    private void updateIgnores(Ignore ignoreTree, List<? extends VFileEvent> events) {
+        for (VFileEvent event : events) {
+            VirtualFile file = event.getFile();
+            if (event instanceof VFilePropertyChangeEvent) {
+                VFilePropertyChangeEvent propertyEvent = (VFilePropertyChangeEvent) event;
+                VirtualFile parent = file.getParent();
+                if (!propertyEvent.getPropertyName().equals("name") || parent == null) {
+                    continue;
+                }
+                ignoreTree.remove(parent.getPath() + "/" + propertyEvent.getOldValue());
+                ignoreTree.add(new FileImpl(file));
+                continue;
+            }
+            if (event instanceof VFileMoveEvent) {
+                VirtualFile oldParent = ((VFileMoveEvent) event).getOldParent();
+                ignoreTree.remove(oldParent.getPath() + "/" + file.getName());
+                ignoreTree.add(new FileImpl(file));
+                continue;
+            }
+            if (event instanceof VFileCopyEvent) {
+                VFileCopyEvent copyEvent = (VFileCopyEvent) event;
+                VirtualFile copiedFile = copyEvent.getNewParent().findChild(copyEvent.getNewChildName());
+                if (copiedFile != null) {
+                    ignoreTree.add(new FileImpl(copiedFile));
+                }
+                continue;
+            }
+            if (event instanceof VFileCreateEvent) {
+                if (file != null) {
+                    ignoreTree.add(new FileImpl(file));
+                }
+                continue;
+            }
+            if (event instanceof VFileContentChangeEvent) {
+                IFile changedFile = new FileImpl(file);
+                if (!Ignore.isIgnoreFile(changedFile)) {
+                    // Its size changed, and it might be too big to share now.
+                    ignoreTree.add(changedFile);
+                    continue;
+                }
+                VirtualFile parent = file.getParent();
+                if (parent != null) {
+                    ignoreTree.rebuild(parent.getPath());
                 }
             }
         }
@@ -267,6 +335,9 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
         final VirtualFile file = FileDocumentManager.getInstance().getFile(event.getDocument());
         if (file == null)
             return;
+        if (context.suppressed.isSuppressed(file.getPath())) {
+            return;
+        }
 
         Document document = event.getDocument();
         editorManager.beforeChange(new DocImpl(context, document));
@@ -274,52 +345,61 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
 
     @Override
     public void caretPositionChanged(final CaretEvent event) {
-        sendCaretPosition(event.getEditor(), false);
+        selectionChanged(event.getEditor(), false);
     }
 
     @Override
     public void visibleAreaChanged(final VisibleAreaEvent event) {
-        sendCaretPosition(event.getEditor(), true);
-    }
-
-    private void sendCaretPosition(Editor editor, boolean following) {
-        FactoryImpl iFactory = (FactoryImpl) context.iFactory;
-        Document document = editor.getDocument();
-        String path = iFactory.getPathForDoc(document);
-        if (path == null) {
-            return;
-        }
-
-        ArrayList<ArrayList<Integer>> rangesWithCaret = new ArrayList<ArrayList<Integer>>(ranges.size() + 1);
-        for(ArrayList<Integer> item: ranges) {
-            rangesWithCaret.add(item);
-        }
-        Integer offset = editor.getCaretModel().getOffset();
-        rangesWithCaret.add(new ArrayList<Integer>(Arrays.asList(offset, offset)));
-        editorManager.changeSelection(path, rangesWithCaret, !isListening.get() || following);
+        selectionChanged(event.getEditor(), true);
     }
 
     @Override
     public void selectionChanged(final SelectionEvent event) {
-        Document document = event.getEditor().getDocument();
-        FactoryImpl iFactory = (FactoryImpl) context.iFactory;
-        String path = iFactory.getPathForDoc(document);
-        if (path == null) {
-            return;
-        }
-
-        TextRange[] textRanges = event.getNewRanges();
-        ranges = new ArrayList<ArrayList<Integer>>();
-        for(TextRange r : textRanges) {
+        Editor editor = event.getEditor();
+        selectionEditor = editor;
+        selected.clear();
+        for (TextRange r : event.getNewRanges()) {
             int start = r.getStartOffset();
             int end = r.getEndOffset();
             if (start == end) {
                 //This signifies a selection was cleared. We don't want to store that as a range.
                 continue;
             }
-            ranges.add(new ArrayList<Integer>(Arrays.asList(start, end)));
+            selected.add(start, end);
+        }
+        selectionChanged(editor, false);
+    }
+
+    private void selectionChanged(Editor editor, boolean following) {
+        if (selectionPublisher == null) {
+            return;
+        }
+        if (editor != selectionEditor) {
+            selected.clear();
+            selectionEditor = editor;
+        }
+        // Caret moves from applying a highlight happen while its file is suppressed, and are sent as following.
+        if (!following && context.suppressed.size() > 0) {
+            VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+            following = file != null && context.suppressed.isSuppressed(file.getPath());
+        }
+        selectionPublisher.changed(following);
+    }
+
+    private void sampleSelection(SelectionPublisher.Selection selection) {
+        Editor editor = selectionEditor;
+        if (editor == null || editor.isDisposed()) {
+            return;
+        }
+        FactoryImpl iFactory = (FactoryImpl) context.iFactory;
+        String path = iFactory.getPathForDoc(editor.getDocument());
+        if (path == null) {
+            return;
         }
-        editorManager.changeSelection(path, ranges, !isListening.get());
+        selection.path = path;
+        selection.addAll(selected);
+        int offset = editor.getCaretModel().getOffset();
+        selection.add(offset, offset);
     }
 
 }
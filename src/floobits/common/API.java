@@ -83,7 +83,14 @@ public class API {
             case 401:
                 Flog.log("Auth failed");
                 context.errorMessage("There is an invalid username or secret in your ~/.floorc and you were not able to authenticate.");
-                return context.iFactory.openFile(new File(Settings.floorcJsonPath));
+                final IContext c = context;
+                context.mainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        c.iFactory.openFile(new File(Settings.floorcJsonPath));
+                    }
+                });
+                return false;
             default:
                 String errorMessage = "Unknown error.";
                 try {
@@ -344,7 +351,7 @@ public class API {
             CrashDump crashDump = new CrashDump(throwable, owner, workspace, colabDir, username);
             String json = gson.toJson(crashDump);
             method.setRequestEntity(new StringRequestEntity(json, "application/json", "UTF-8"));
-            new Thread(new Runnable() {
+            IOExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -356,7 +363,7 @@ public class API {
 
                     }
                 }
-            }, "Floobits Crash Reporter").run();
+            });
         } catch (Throwable e) {
             if (context == null) {
                 Flog.warn(String.format("Couldn't send crash report %s", e));
@@ -382,7 +389,7 @@ public class API {
             Flog.warn("Couldn't send a user issue.");
             return;
         }
-        new Thread(new Runnable() {
+        IOExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -391,6 +398,6 @@ public class API {
                     Flog.errorMessage(String.format("Couldn't send crash report %s", e), null);
                 }
             }
-        }, "Floobits User Issue Submitter").run();
+        });
     }
 }
@@ -1,5 +1,7 @@
 package floobits.common;
 
+import floobits.common.protocol.buf.Buf;
+import floobits.common.protocol.buf.ShadowStore;
 import floobits.utilities.Flog;
 
 import java.util.Set;
@@ -29,6 +31,30 @@ public class Bootstrap {
             if (floorcJson != null && floorcJson.MAX_ERROR_REPORTS != null) {
                 API.maxErrorReports = floorcJson.MAX_ERROR_REPORTS;
             }
+            if (floorcJson != null && floorcJson.MAX_SHADOW_SIZE != null) {
+                ShadowStore.maxSize = floorcJson.MAX_SHADOW_SIZE;
+            }
+            if (floorcJson != null && floorcJson.MAX_PATCHES_IN_FLIGHT != null) {
+                Buf.maxInFlight = floorcJson.MAX_PATCHES_IN_FLIGHT;
+            }
+            if (floorcJson != null && floorcJson.UPLOAD_BYTES_PER_SECOND != null) {
+                UploadEngine.maxBytesPerSecond = floorcJson.UPLOAD_BYTES_PER_SECOND;
+            }
+            if (floorcJson != null && floorcJson.MAX_UPLOAD_BYTES_IN_FLIGHT != null) {
+                UploadEngine.maxBytesInFlight = floorcJson.MAX_UPLOAD_BYTES_IN_FLIGHT;
+            }
+            if (floorcJson != null && floorcJson.EDITOR_SLICE_MS != null) {
+                EditorScheduler.sliceMillis = floorcJson.EDITOR_SLICE_MS;
+            }
+            if (floorcJson != null && floorcJson.IO_THREADS != null) {
+                IOExecutor.maxThreads = floorcJson.IO_THREADS;
+            }
+            if (floorcJson != null && floorcJson.HIGHLIGHTS_PER_SECOND != null) {
+                HighlightThrottler.maxPerSecond = floorcJson.HIGHLIGHTS_PER_SECOND;
+            }
+            if (floorcJson != null && floorcJson.OUTBOUND_HIGHLIGHTS_PER_SECOND != null) {
+                SelectionPublisher.maxPerSecond = floorcJson.OUTBOUND_HIGHLIGHTS_PER_SECOND;
+            }
             String userAgent = String.format("%s-%s-%s %s (%s-%s)", editor, major, minor, pluginVersion, System.getProperty("os.name"), System.getProperty("os.version"));
             CrashDump.setUA(userAgent, editor);
         } catch (Throwable e) {
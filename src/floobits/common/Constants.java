@@ -2,8 +2,6 @@ package floobits.common;
 
 import org.apache.commons.io.FilenameUtils;
 
-import java.util.regex.Pattern;
-
 public class Constants {
     final static public String baseDir = FilenameUtils.concat(System.getProperty("user.home"), "floobits");
     final static public String shareDir = FilenameUtils.concat(baseDir, "share");
@@ -14,6 +12,5 @@ public class Constants {
     final static public String floobitsDomain = "floobits.com";
     static public String defaultHost = "floobits.com";
     final static public int defaultPort = 3448;
-    public static final Pattern NEW_LINE = Pattern.compile("\\r\\n?", Pattern.DOTALL);
     final static public int TOO_MANY_BIG_DIRS = 50;
 }
@@ -32,7 +32,7 @@ public class EditorEventHandler {
         context.setTimeout(100, new Runnable() {
             @Override
             public void run() {
-                context.readThread(new Runnable() {
+                context.readThread("create file", new Runnable() {
                     @Override
                     public void run() {
                         FlooHandler flooHandler = context.getFlooHandler();
@@ -86,18 +86,15 @@ public class EditorEventHandler {
         if (buf == null) {
             return;
         }
-        synchronized (buf) {
-            if (Buf.isBad(buf)) {
-                Flog.info("buf isn't populated yet %s", file.getPath());
-                return;
-            }
-            buf.send_patch(file);
-        }
+        buf.changed(file);
     }
 
-    public void changeSelection(String path, ArrayList<ArrayList<Integer>> textRanges, boolean following) {
+    /**
+     * @return false if the highlight wasn't sent.
+     */
+    public boolean changeSelection(String path, ArrayList<ArrayList<Integer>> textRanges, boolean following) {
         Buf buf = state.getBufByPath(path);
-        outbound.highlight(buf, textRanges, false, following);
+        return outbound.highlight(buf, textRanges, false, following);
     }
 
     public void save(String path) {
@@ -230,27 +227,25 @@ public class EditorEventHandler {
         context.setTimeout(0, new Runnable() {
             @Override
             public void run() {
-                context.writeThread(new Runnable() {
+                context.writeThread("read only", new Runnable() {
                     @Override
                     public void run() {
                         if (!state.readOnly && bufByPath.isPopulated()) {
                             return;
                         }
-                        synchronized (context) {
-                            try {
-                                context.setListener(false);
-                                IDoc d = context.iFactory.getDocument(virtualFile);
-                                if (d == null) {
-                                    return;
-                                }
-                                d.setReadOnly(false);
-                                d.setText(text);
-                                d.setReadOnly(true);
-                            } catch (Throwable e) {
-                                Flog.error(e);
-                            } finally {
-                                context.setListener(true);
+                        context.suppressed.suppress(path);
+                        try {
+                            IDoc d = context.iFactory.getDocument(virtualFile);
+                            if (d == null) {
+                                return;
                             }
+                            d.setReadOnly(false);
+                            d.setText(text);
+                            d.setReadOnly(true);
+                        } catch (Throwable e) {
+                            Flog.error(e);
+                        } finally {
+                            context.suppressed.release(path);
                         }
                     }
                 });
@@ -0,0 +1,51 @@
+package floobits.common;
+
+import floobits.common.interfaces.IContext;
+import org.apache.commons.io.FilenameUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which files the user is looking at, so we can sync those first. Lower is more important. The snapshot is taken
+ * again at most every MAX_AGE milliseconds.
+ */
+public class EditorPriority {
+    public static final int SELECTED = 0;
+    public static final int OPEN = 1;
+    public static final int RECENT = 2;
+    public static final int OTHER = 3;
+    public static final int LEVELS = 4;
+    private static final long MAX_AGE = 500;
+    private final IContext context;
+    private HashMap<String, Integer> priorities;
+    private long taken = 0;
+
+    public EditorPriority(IContext context) {
+        this.context = context;
+    }
+
+    /**
+     * @param path project relative path.
+     */
+    public synchronized int get(String path) {
+        long now = System.currentTimeMillis();
+        if (priorities == null || now - taken > MAX_AGE) {
+            priorities = snapshot();
+            taken = now;
+        }
+        Integer priority = priorities.get(FilenameUtils.separatorsToUnix(path));
+        return priority == null ? OTHER : priority;
+    }
+
+    private HashMap<String, Integer> snapshot() {
+        HashMap<String, Integer> relPriorities = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : context.iFactory.getEditorPriorities().entrySet()) {
+            String relPath = context.toProjectRelPath(entry.getKey());
+            if (relPath != null) {
+                relPriorities.put(FilenameUtils.separatorsToUnix(relPath), entry.getValue());
+            }
+        }
+        return relPriorities;
+    }
+}
@@ -1,79 +1,486 @@
 package floobits.common;
 
+import com.google.gson.GsonBuilder;
 import floobits.common.interfaces.IContext;
+import floobits.common.protocol.FlooPatch;
 import floobits.common.protocol.buf.Buf;
 import floobits.utilities.Flog;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runs queued editor work in two lanes. The write lane is for anything that changes documents or files, like
+ * patches, get_buf responses, renames and deletes, and runs on the write thread. The read lane is for work that only
+ * touches markup and editors, like highlights, following and balloons, and runs on the read thread so it doesn't
+ * hold the write lock other IDE work is waiting for. The lanes don't wait for each other, except that a highlight
+ * for a buffer with write work queued goes in the write lane after it, since its ranges are for the text after it.
+ *
+ * Each lane runs in slices of about sliceMillis. Whatever is left when a slice runs out is posted again, so the UI
+ * gets a turn between slices instead of freezing until the queue is empty.
+ *
+ * Some kinds of work only need to happen once. A highlight replaces any pending highlight from the same user in the
+ * same buffer, and a save replaces a pending save of the same buffer. The replaced entry stays in the queue but is
+ * skipped, and the newest one runs in its own place so it still comes after everything queued before it.
+ * Remote patches for a buffer that arrive one after another are applied together by one entry. Anything else
+ * queued for that buffer in the write lane starts a new batch so patches never move past it.
+ *
+ * Every entry is named after the event it's for, and stats keeps how long each kind waited and ran.
+ */
 public class EditorScheduler {
-    public final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+    public static int sliceMillis = 12;
+    public final EditorStats stats = new EditorStats();
+    public final Lane read;
+    public final Lane write;
     private final IContext context;
-    // buffer ids are not removed from readOnlyBufferIds
-    private final Runnable dequeueRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (queue.size() > 5) {
-                Flog.log("Doing %s work", queue.size());
-            }
-            while (true) {
-                // TODO: set a limit here and continue later
-                Runnable action = queue.poll();
-                if (action == null) {
-                    return;
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    // The newest entry for each key. Entries that aren't in here anymore have been replaced.
+    private final ConcurrentHashMap<String, QueuedAction> latest = new ConcurrentHashMap<String, QueuedAction>();
+    // Patch batches by buffer id that can still take more patches.
+    private final ConcurrentHashMap<Integer, PatchBatch> batches = new ConcurrentHashMap<Integer, PatchBatch>();
+    // Bumped by reset, so write actions still waiting for their buffer's turn are dropped too.
+    private final AtomicInteger generation = new AtomicInteger();
+    // How many write actions are queued for each buffer id and haven't run or been skipped yet.
+    private final ConcurrentHashMap<Integer, AtomicInteger> queuedWrites = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    public class Lane {
+        public final String name;
+        // What the lane's work is recorded under in stats.
+        public final String where;
+        private final boolean writes;
+        private final ConcurrentLinkedQueue<QueuedAction> queue = new ConcurrentLinkedQueue<QueuedAction>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // ConcurrentLinkedQueue.size() walks the whole queue.
+        private final AtomicInteger backlog = new AtomicInteger();
+        private final AtomicInteger maxBacklog = new AtomicInteger();
+        private final AtomicLong slices = new AtomicLong();
+        private final AtomicLong actions = new AtomicLong();
+        private final AtomicLong longestSlice = new AtomicLong();
+        private final Runnable dequeueRunnable = new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                long deadline = start + sliceMillis * 1000000L;
+                int count = 0;
+                try {
+                    while (true) {
+                        QueuedAction action = queue.poll();
+                        if (action == null) {
+                            break;
+                        }
+                        backlog.decrementAndGet();
+                        count++;
+                        runAction(action);
+                        if (System.nanoTime() >= deadline) {
+                            break;
+                        }
+                    }
+                } finally {
+                    finishSlice(start, count);
                 }
+            }
+        };
+
+        Lane(String name, boolean writes) {
+            this.name = name;
+            this.writes = writes;
+            where = String.format("%s lane", name);
+        }
+
+        void add(QueuedAction action) {
+            queue.add(action);
+            int size = backlog.incrementAndGet();
+            int max = maxBacklog.get();
+            while (size > max && !maxBacklog.compareAndSet(max, size)) {
+                max = maxBacklog.get();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            if (writes) {
+                context.writeThread(where, dequeueRunnable);
+            } else {
+                context.readThread(where, dequeueRunnable);
+            }
+        }
+
+        private void runAction(QueuedAction action) {
+            if (!action.claim()) {
+                action.skip();
+                return;
+            }
+            long started = System.nanoTime();
+            EditorStats.Timings timings = stats.get(where, action.event);
+            timings.wait.record(started - action.queuedAt);
+            try {
                 action.run();
+            } finally {
+                timings.run.record(System.nanoTime() - started);
             }
         }
-    };
 
-    class QueuedAction implements Runnable {
+        private void finishSlice(long start, int count) {
+            long elapsed = System.nanoTime() - start;
+            slices.incrementAndGet();
+            actions.addAndGet(count);
+            long longest = longestSlice.get();
+            while (elapsed > longest && !longestSlice.compareAndSet(longest, elapsed)) {
+                longest = longestSlice.get();
+            }
+            if (elapsed > 200 * 1000000L) {
+                Flog.log("Spent %sms on %s %s actions, %s left.", elapsed / 1000000, count, name, backlog.get());
+            }
+            scheduled.set(false);
+            // Anything queued before scheduled was cleared would otherwise wait for the next add.
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+
+        void reset() {
+            QueuedAction action;
+            while ((action = queue.poll()) != null) {
+                backlog.decrementAndGet();
+                action.skip();
+            }
+        }
+
+        public int getBacklog() {
+            return backlog.get();
+        }
+
+        public int getMaxBacklog() {
+            return maxBacklog.get();
+        }
+
+        public long getLongestSliceMillis() {
+            return longestSlice.get() / 1000000;
+        }
+
+        public long getSlices() {
+            return slices.get();
+        }
+
+        public long getActions() {
+            return actions.get();
+        }
+
+        public String toString() {
+            return String.format("%s actions: %s slices: %s longest slice: %sms backlog: %s max backlog: %s", name,
+                    getActions(), getSlices(), getLongestSliceMillis(), getBacklog(), getMaxBacklog());
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("actions", getActions());
+            map.put("slices", getSlices());
+            map.put("longest_slice_ms", getLongestSliceMillis());
+            map.put("backlog", getBacklog());
+            map.put("max_backlog", getMaxBacklog());
+            return map;
+        }
+    }
+
+    class QueuedAction {
         public final Buf buf;
         public RunLater<Buf> runnable;
+        final String event;
+        final long queuedAt = System.nanoTime();
+        // Only the newest action for a key runs. Null if this can't be replaced.
+        final String key;
+        // The buffer's turn, for actions in the write lane. Nothing else can change the buffer until it ends.
+        volatile SerialExecutor.Turn turn;
+        // The buffer's count in queuedWrites, for actions in the write lane.
+        volatile AtomicInteger writes;
 
-        QueuedAction(Buf buf, RunLater<Buf> runnable) {
+        QueuedAction(Buf buf, String event, RunLater<Buf> runnable) {
+            this(buf, event, runnable, null);
+        }
+
+        QueuedAction(Buf buf, String event, RunLater<Buf> runnable, String key) {
             this.runnable = runnable;
             this.buf = buf;
+            this.event = event;
+            this.key = key;
+        }
+
+        /**
+         * @return false if a newer action with the same key replaced this one.
+         */
+        boolean claim() {
+            return key == null || latest.remove(key, this);
         }
-        public void run() {
-            long l = System.currentTimeMillis();
-            synchronized (buf) {
-                runnable.run(buf);
+
+        void run() {
+            Runnable body = new Runnable() {
+                @Override
+                public void run() {
+                    long l = System.currentTimeMillis();
+                    runnable.run(buf);
+                    long l1 = System.currentTimeMillis() - l;
+                    if (l1 > 200) {
+                        Flog.log("Spent %s in ui thread on %s", l1, event);
+                    }
+                }
+            };
+            try {
+                if (turn == null) {
+                    body.run();
+                    return;
+                }
+                turn.run(body);
+            } finally {
+                done();
             }
-            long l1 = System.currentTimeMillis() - l;
-            if (l1 > 200) {
-                Flog.log("Spent %s in ui thread", l1);
+        }
+
+        void skip() {
+            if (turn != null) {
+                turn.skip();
+            }
+            done();
+        }
+
+        private void done() {
+            AtomicInteger count = writes;
+            if (count != null) {
+                writes = null;
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    class PatchBatch extends QueuedAction {
+        private final List<FlooPatch> patches = new ArrayList<FlooPatch>();
+        private boolean started = false;
+
+        PatchBatch(final Buf buf, final RunLater<FlooPatch> apply) {
+            super(buf, "patch", null);
+            runnable = new RunLater<Buf>() {
+                @Override
+                public void run(Buf b) {
+                    for (FlooPatch patch : take()) {
+                        apply.run(patch);
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return false if the batch already ran, in which case patch needs a batch of its own.
+         */
+        synchronized boolean add(FlooPatch patch) {
+            if (started) {
+                return false;
+            }
+            patches.add(patch);
+            return true;
+        }
+
+        private List<FlooPatch> take() {
+            batches.remove(buf.id, this);
+            synchronized (this) {
+                started = true;
+                return patches;
             }
         }
     }
 
     public EditorScheduler(IContext context) {
         this.context = context;
+        read = new Lane("read", false);
+        write = new Lane("write", true);
     }
 
     public void shutdown() {
+        if (read.getSlices() > 0 || write.getSlices() > 0) {
+            Flog.log("Editor scheduler: %s", this);
+        }
         reset();
     }
 
-    public void queue(Buf buf, RunLater<Buf> runnable) {
+    /**
+     * Queues runnable in the write lane.
+     * @param event what the action is recorded as in stats.
+     */
+    public void queue(Buf buf, String event, RunLater<Buf> runnable) {
         if (buf == null) {
             Flog.log("Buf is null abandoning adding new queue action.");
             return;
         }
-        QueuedAction queuedAction = new QueuedAction(buf, runnable);
-        queue(queuedAction);
+        closeBatch(buf);
+        queueWrite(new QueuedAction(buf, event, runnable));
+    }
+
+    /**
+     * Queues runnable in the write lane.
+     */
+    public void queue(String event, Runnable runnable) {
+        write.add(new QueuedAction(null, event, wrap(runnable)));
+    }
+
+    /**
+     * Queues runnable in the read lane. It must not change documents or files.
+     */
+    public void queueRead(String event, Runnable runnable) {
+        read.add(new QueuedAction(null, event, wrap(runnable)));
+    }
+
+    private static RunLater<Buf> wrap(final Runnable runnable) {
+        return new RunLater<Buf>() {
+            @Override
+            public void run(Buf buf) {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * Queues runnable in the read lane, replacing any highlight from userId in buf that hasn't been applied yet. If
+     * buf has write work queued, like patches the highlight was made after, it goes in the write lane behind it.
+     */
+    public void queueHighlight(Buf buf, Integer userId, RunLater<Buf> runnable) {
+        if (buf == null) {
+            Flog.log("Buf is null abandoning adding new highlight.");
+            return;
+        }
+        AtomicInteger writes = queuedWrites.get(buf.id);
+        Lane lane = read;
+        if (writes != null && writes.get() > 0) {
+            closeBatch(buf);
+            lane = write;
+        }
+        queueLatest(lane, buf, "highlight", String.format("highlight %s %s", userId, buf.id), runnable);
+    }
+
+    /**
+     * Replaces any save of buf that hasn't happened yet.
+     */
+    public void queueSave(Buf buf, RunLater<Buf> runnable) {
+        if (buf == null) {
+            Flog.log("Buf is null abandoning adding new save.");
+            return;
+        }
+        closeBatch(buf);
+        queueLatest(write, buf, "saved", String.format("saved %s", buf.id), runnable);
     }
 
-    public void queue(Runnable runnable) {
-        queue.add(runnable);
-        if (queue.size() > 1) {
+    /**
+     * Adds patch to the batch for buf if nothing else was queued for buf since the last patch and that batch hasn't
+     * run yet. Otherwise starts a new batch. apply is called once for each patch, in order, from the same action.
+     */
+    public void queuePatch(Buf buf, FlooPatch patch, RunLater<FlooPatch> apply) {
+        if (buf == null) {
+            Flog.log("Buf is null abandoning adding new patch.");
+            return;
+        }
+        PatchBatch batch = batches.get(buf.id);
+        if (batch != null && batch.add(patch)) {
+            coalesced.incrementAndGet();
             return;
         }
-        context.writeThread(dequeueRunnable);
+        batch = new PatchBatch(buf, apply);
+        batch.add(patch);
+        batches.put(buf.id, batch);
+        queueWrite(batch);
+    }
+
+    private void queueLatest(Lane lane, Buf buf, String event, String key, RunLater<Buf> runnable) {
+        QueuedAction queuedAction = new QueuedAction(buf, event, runnable, key);
+        if (latest.put(key, queuedAction) != null) {
+            superseded.incrementAndGet();
+        }
+        if (lane == write) {
+            queueWrite(queuedAction);
+            return;
+        }
+        lane.add(queuedAction);
+    }
+
+    /**
+     * Waits for the buffer's turn before going into the write lane, so work on the buffer's serial executor and
+     * on the write thread happens one at a time and in order.
+     */
+    private void queueWrite(final QueuedAction queuedAction) {
+        final int queuedIn = generation.get();
+        AtomicInteger writes = queuedWrites.get(queuedAction.buf.id);
+        if (writes == null) {
+            AtomicInteger created = new AtomicInteger();
+            writes = queuedWrites.putIfAbsent(queuedAction.buf.id, created);
+            if (writes == null) {
+                writes = created;
+            }
+        }
+        writes.incrementAndGet();
+        queuedAction.writes = writes;
+        queuedAction.buf.serial.submit(new RunLater<SerialExecutor.Turn>() {
+            @Override
+            public void run(SerialExecutor.Turn turn) {
+                if (generation.get() != queuedIn) {
+                    turn.skip();
+                    queuedAction.done();
+                    return;
+                }
+                queuedAction.turn = turn;
+                write.add(queuedAction);
+            }
+        });
+    }
+
+    private void closeBatch(Buf buf) {
+        batches.remove(buf.id);
     }
 
     public void reset() {
-        queue.clear();
+        generation.incrementAndGet();
+        read.reset();
+        write.reset();
+        latest.clear();
+        batches.clear();
+        queuedWrites.clear();
+    }
+
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public String toString() {
+        return String.format("%s, %s, superseded: %s coalesced patches: %s", write, read, getSuperseded(),
+                getCoalesced());
+    }
+
+    /**
+     * @return the lanes and every timing in stats, as JSON that can be attached to a bug report.
+     */
+    public String toJson() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("time", new Date().toString());
+        map.put("slice_ms", sliceMillis);
+        Map<String, Object> lanes = new LinkedHashMap<String, Object>();
+        lanes.put(write.name, write.toMap());
+        lanes.put(read.name, read.toMap());
+        map.put("lanes", lanes);
+        map.put("superseded", getSuperseded());
+        map.put("coalesced_patches", getCoalesced());
+        map.put("timings", stats.toMap());
+        return new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(map);
     }
 
 }
@@ -0,0 +1,95 @@
+package floobits.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How long editor work waits and runs, by where it ran and what kind of event it was. Where is a scheduler lane or
+ * the read or write thread. Event is the protocol event, like patch or highlight, or what asked for the thread.
+ */
+public class EditorStats {
+    private final ConcurrentHashMap<String, Timings> timings = new ConcurrentHashMap<String, Timings>();
+
+    public static class Timings {
+        public final String where;
+        public final String event;
+        // From being queued to starting.
+        public final LatencyHistogram wait = new LatencyHistogram();
+        // Part of wait spent getting the read or write lock. Only recorded for the threads.
+        public final LatencyHistogram lock = new LatencyHistogram();
+        // From starting to finishing.
+        public final LatencyHistogram run = new LatencyHistogram();
+
+        Timings(String where, String event) {
+            this.where = where;
+            this.event = event;
+        }
+
+        void reset() {
+            wait.reset();
+            lock.reset();
+            run.reset();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("wait", wait.toMap());
+            if (lock.getCount() > 0) {
+                map.put("lock", lock.toMap());
+            }
+            map.put("run", run.toMap());
+            return map;
+        }
+    }
+
+    public Timings get(String where, String event) {
+        String key = String.format("%s/%s", where, event);
+        Timings t = timings.get(key);
+        if (t != null) {
+            return t;
+        }
+        t = new Timings(where, event);
+        Timings existing = timings.putIfAbsent(key, t);
+        return existing != null ? existing : t;
+    }
+
+    /**
+     * @return every kind of work seen so far, sorted by where and then event.
+     */
+    public List<Timings> getAll() {
+        List<Timings> all = new ArrayList<Timings>(timings.values());
+        Collections.sort(all, new Comparator<Timings>() {
+            @Override
+            public int compare(Timings a, Timings b) {
+                int c = a.where.compareTo(b.where);
+                return c != 0 ? c : a.event.compareTo(b.event);
+            }
+        });
+        return all;
+    }
+
+    public void reset() {
+        for (Timings t : timings.values()) {
+            t.reset();
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (Timings t : getAll()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> events = (Map<String, Object>) map.get(t.where);
+            if (events == null) {
+                events = new LinkedHashMap<String, Object>();
+                map.put(t.where, events);
+            }
+            events.put(t.event, t.toMap());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,215 @@
+package floobits.common;
+
+import floobits.common.interfaces.IContext;
+import floobits.utilities.Flog;
+import io.fletty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * Sends get_buf requests, at most maxOutstanding at a time. Asking for a buffer that's already queued or waiting for
+ * a response does nothing. Buffers are sent in EditorPriority order, so the ones the user is looking at go first.
+ * A request that gets no response within timeout is queued again, so a lost one can't hold its slot forever.
+ */
+public class FetchScheduler {
+    public static int maxOutstanding = 32;
+    public static int timeout = 30000;
+    private final IContext context;
+    private final RunLater<Integer> send;
+    // One queue per EditorPriority level.
+    private final ArrayList<LinkedHashSet<Integer>> queued = new ArrayList<LinkedHashSet<Integer>>();
+    private final HashMap<Integer, Request> outstanding = new HashMap<Integer, Request>();
+    private long requests = 0;
+    private long duplicates = 0;
+    private long timeouts = 0;
+
+    private static class Request {
+        final Integer id;
+        final int priority;
+        ScheduledFuture timeout;
+
+        Request(Integer id, int priority) {
+            this.id = id;
+            this.priority = priority;
+        }
+
+        void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
+    }
+
+    /**
+     * @param send writes a get_buf for the id. Called without holding any locks.
+     */
+    public FetchScheduler(IContext context, RunLater<Integer> send) {
+        this.context = context;
+        this.send = send;
+        for (int i = 0; i < EditorPriority.LEVELS; i++) {
+            queued.add(new LinkedHashSet<Integer>());
+        }
+    }
+
+    /**
+     * @param priority one of the EditorPriority levels.
+     */
+    public void fetch(Integer id, int priority) {
+        priority = Math.max(0, Math.min(priority, EditorPriority.LEVELS - 1));
+        synchronized (this) {
+            requests++;
+            if (outstanding.containsKey(id)) {
+                duplicates++;
+                return;
+            }
+            for (int i = 0; i < queued.size(); i++) {
+                if (!queued.get(i).contains(id)) {
+                    continue;
+                }
+                duplicates++;
+                if (i <= priority) {
+                    return;
+                }
+                queued.get(i).remove(id);
+                break;
+            }
+            queued.get(priority).add(id);
+        }
+        pump();
+    }
+
+    /**
+     * Call this when a get_buf response comes in.
+     */
+    public void received(Integer id) {
+        synchronized (this) {
+            Request request = outstanding.remove(id);
+            if (request == null) {
+                return;
+            }
+            request.cancelTimeout();
+        }
+        pump();
+    }
+
+    /**
+     * Forget about id, for example because the buffer was deleted or the server refused the request, and we'll
+     * never get a response.
+     */
+    public void cancel(Integer id) {
+        synchronized (this) {
+            for (LinkedHashSet<Integer> ids : queued) {
+                ids.remove(id);
+            }
+            Request request = outstanding.remove(id);
+            if (request == null) {
+                return;
+            }
+            request.cancelTimeout();
+        }
+        pump();
+    }
+
+    private void expired(Request request) {
+        synchronized (this) {
+            if (outstanding.get(request.id) != request) {
+                return;
+            }
+            outstanding.remove(request.id);
+            timeouts++;
+            Flog.warn("No response to get_buf for %s after %sms, asking again.", request.id, timeout);
+            queued.get(request.priority).add(request.id);
+        }
+        pump();
+    }
+
+    public synchronized void reset() {
+        if (requests > 0) {
+            Flog.log("Fetched buffers: %s", this);
+        }
+        for (LinkedHashSet<Integer> ids : queued) {
+            ids.clear();
+        }
+        for (Request request : outstanding.values()) {
+            request.cancelTimeout();
+        }
+        outstanding.clear();
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    public synchronized int getQueued() {
+        int size = 0;
+        for (LinkedHashSet<Integer> ids : queued) {
+            size += ids.size();
+        }
+        return size;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    private void pump() {
+        LinkedList<Request> toSend = new LinkedList<Request>();
+        synchronized (this) {
+            while (outstanding.size() < maxOutstanding) {
+                Request request = null;
+                for (int priority = 0; priority < queued.size(); priority++) {
+                    Integer id = poll(queued.get(priority));
+                    if (id != null) {
+                        request = new Request(id, priority);
+                        break;
+                    }
+                }
+                if (request == null) {
+                    break;
+                }
+                outstanding.put(request.id, request);
+                toSend.add(request);
+            }
+        }
+        for (final Request request : toSend) {
+            send.run(request.id);
+            ScheduledFuture scheduled = context.setTimeout(timeout, new Runnable() {
+                @Override
+                public void run() {
+                    expired(request);
+                }
+            });
+            synchronized (this) {
+                request.timeout = scheduled;
+                if (outstanding.get(request.id) != request) {
+                    // The response beat us here.
+                    request.cancelTimeout();
+                }
+            }
+        }
+    }
+
+    private static Integer poll(LinkedHashSet<Integer> ids) {
+        Iterator<Integer> iterator = ids.iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Integer id = iterator.next();
+        iterator.remove();
+        return id;
+    }
+
+    public synchronized String toString() {
+        return String.format("requests: %s duplicates: %s timeouts: %s outstanding: %s queued: %s", requests,
+                duplicates, timeouts, outstanding.size(), getQueued());
+    }
+}
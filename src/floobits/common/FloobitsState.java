@@ -3,6 +3,7 @@ package floobits.common;
 import floobits.common.interfaces.IContext;
 import floobits.common.protocol.FlooUser;
 import floobits.common.protocol.buf.Buf;
+import floobits.common.protocol.buf.ShadowStore;
 import floobits.common.protocol.json.receive.FlooHighlight;
 import floobits.common.protocol.json.send.RoomInfoResponse;
 import floobits.utilities.Flog;
@@ -10,6 +11,7 @@ import org.apache.commons.io.FilenameUtils;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 
 
@@ -20,8 +22,12 @@ public class FloobitsState {
     private ScheduledFuture pausedFollowing;
     public HashSet<String> perms = new HashSet<String>();
     public Map<Integer, FlooUser> users = new HashMap<Integer, FlooUser>();
-    @Nullable HashMap<Integer, Buf> bufs = new HashMap<Integer, Buf>();
-    final HashMap<String, Integer> pathsToIds = new HashMap<String, Integer>();
+    // Buffers are added on the network thread while room_info is parsed, and read from the UI thread.
+    @Nullable volatile ConcurrentHashMap<Integer, Buf> bufs = new ConcurrentHashMap<Integer, Buf>();
+    final ConcurrentHashMap<String, Integer> pathsToIds = new ConcurrentHashMap<String, Integer>();
+    public final ShadowStore shadowStore;
+    // req_id of every patch we've sent and not seen an ack for yet.
+    private final ConcurrentHashMap<Integer, Buf> unackedPatches = new ConcurrentHashMap<Integer, Buf>();
     private int connectionId;
 
     public boolean readOnly = false;
@@ -33,6 +39,7 @@ public class FloobitsState {
     public FloobitsState(IContext context, FlooUrl flooUrl) {
         this.context = context;
         url = flooUrl;
+        shadowStore = new ShadowStore(context);
     }
 
     public boolean can(String perm) {
@@ -60,6 +67,61 @@ public class FloobitsState {
         }
 
     }
+    /**
+     * @return false if we don't have a buffer list anymore, which means we probably disconnected.
+     */
+    boolean addBuf(Buf buf) {
+        Map<Integer, Buf> b = bufs;
+        if (b == null) {
+            return false;
+        }
+        b.put(buf.id, buf);
+        pathsToIds.put(buf.path, buf.id);
+        shadowStore.add(buf);
+        return true;
+    }
+
+    void removeBuf(Buf buf) {
+        Map<Integer, Buf> b = bufs;
+        if (b != null) {
+            b.remove(buf.id);
+            pathsToIds.remove(buf.path);
+        }
+        shadowStore.remove(buf);
+        forgetPatches(buf);
+    }
+
+    void patchSent(int reqId, Buf buf) {
+        unackedPatches.put(reqId, buf);
+    }
+
+    /**
+     * @return the buffer the patch with reqId was for, or null if reqId wasn't a patch.
+     */
+    @Nullable Buf patchAcked(int reqId) {
+        return unackedPatches.remove(reqId);
+    }
+
+    /**
+     * Forgets the req_ids buf stopped waiting on. An ack covers every earlier patch for the buffer too.
+     */
+    void forgetAckedPatches(Buf buf) {
+        Iterator<Map.Entry<Integer, Buf>> iterator = unackedPatches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Buf> entry = iterator.next();
+            if (entry.getValue() == buf && !buf.isPatchPending(entry.getKey())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets every req_id buf is waiting on.
+     */
+    void forgetPatches(Buf buf) {
+        unackedPatches.values().removeAll(Collections.singleton(buf));
+    }
+
     public void setBufPath(Buf buf, String newPath) {
         pathsToIds.remove(buf.path);
         buf.path = FilenameUtils.separatorsToUnix(newPath);
@@ -144,6 +206,7 @@ public class FloobitsState {
     }
 
     public void shutdown() {
+        Flog.log("Shadow store %s", shadowStore);
         bufs = null;
     }
 
@@ -12,6 +12,14 @@ public class FloorcJson implements Serializable {
     public Boolean insecure;
     public String share_dir;
     public Integer MAX_ERROR_REPORTS;
+    public Long MAX_SHADOW_SIZE;
+    public Integer MAX_PATCHES_IN_FLIGHT;
+    public Long UPLOAD_BYTES_PER_SECOND;
+    public Long MAX_UPLOAD_BYTES_IN_FLIGHT;
+    public Integer EDITOR_SLICE_MS;
+    public Integer IO_THREADS;
+    public Integer HIGHLIGHTS_PER_SECOND;
+    public Integer OUTBOUND_HIGHLIGHTS_PER_SECOND;
     public String DEFAULT_HOST;
 
     public static FloorcJson getFloorcJsonFromSettings () {
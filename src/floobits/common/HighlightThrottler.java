@@ -0,0 +1,146 @@
+package floobits.common;
+
+import floobits.common.interfaces.IContext;
+import floobits.common.protocol.json.receive.FlooHighlight;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows each remote user's highlights in a buffer at most maxPerSecond times a second. A highlight that comes in
+ * too soon waits for the next opening, and newer highlights replace it while it waits, so the latest one is always
+ * what gets shown. Summons, and a followed user switching buffers, are shown right away. Showing one of a user's
+ * highlights drops the ones still waiting in their other buffers, since it's newer.
+ */
+public class HighlightThrottler {
+    public static int maxPerSecond = 25;
+    private final IContext context;
+    private final RunLater<FlooHighlight> show;
+    // By user, then buffer.
+    private final HashMap<Integer, HashMap<Integer, Slot>> slots = new HashMap<Integer, HashMap<Integer, Slot>>();
+    // The buffer each user's last highlight was in.
+    private final HashMap<Integer, Integer> lastBuf = new HashMap<Integer, Integer>();
+    private final AtomicLong replaced = new AtomicLong();
+
+    private class Slot {
+        long lastShown = 0;
+        FlooHighlight pending;
+        boolean scheduled = false;
+    }
+
+    /**
+     * @param show called with each highlight that should be shown, on the network thread.
+     */
+    public HighlightThrottler(IContext context, RunLater<FlooHighlight> show) {
+        this.context = context;
+        this.show = show;
+    }
+
+    /**
+     * @param followed whether we're following the user who sent highlight.
+     */
+    public void highlight(FlooHighlight highlight, boolean followed) {
+        if (maxPerSecond <= 0 || highlight.user_id == null || highlight.id == null) {
+            show.run(highlight);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long interval = 1000 / maxPerSecond;
+        long wait;
+        synchronized (this) {
+            Integer previousBuf = lastBuf.put(highlight.user_id, highlight.id);
+            boolean jump = Boolean.TRUE.equals(highlight.summon) || (followed && !highlight.id.equals(previousBuf));
+            HashMap<Integer, Slot> userSlots = slots.get(highlight.user_id);
+            if (userSlots == null) {
+                userSlots = new HashMap<Integer, Slot>();
+                slots.put(highlight.user_id, userSlots);
+            }
+            Slot slot = userSlots.get(highlight.id);
+            if (slot == null) {
+                slot = new Slot();
+                userSlots.put(highlight.id, slot);
+            }
+            if (slot.pending != null) {
+                replaced.incrementAndGet();
+            }
+            wait = slot.lastShown + interval - now;
+            if (jump || wait <= 0) {
+                // Anything waiting is older than this.
+                dropPending(userSlots);
+                slot.lastShown = now;
+            } else {
+                slot.pending = highlight;
+                if (slot.scheduled) {
+                    return;
+                }
+                slot.scheduled = true;
+                final Slot waiting = slot;
+                final HashMap<Integer, Slot> waitingUser = userSlots;
+                if (context.setTimeout((int) wait, new Runnable() {
+                    @Override
+                    public void run() {
+                        showPending(waitingUser, waiting);
+                    }
+                }) == null) {
+                    // Shutting down.
+                    slot.scheduled = false;
+                    slot.pending = null;
+                }
+                return;
+            }
+        }
+        show.run(highlight);
+    }
+
+    private void showPending(HashMap<Integer, Slot> userSlots, Slot slot) {
+        FlooHighlight highlight;
+        synchronized (this) {
+            slot.scheduled = false;
+            highlight = slot.pending;
+            if (highlight == null) {
+                return;
+            }
+            dropPending(userSlots);
+            slot.lastShown = System.currentTimeMillis();
+        }
+        show.run(highlight);
+    }
+
+    /**
+     * Once one of a user's highlights is shown, the ones still waiting in any of their buffers are older than it.
+     */
+    private void dropPending(HashMap<Integer, Slot> userSlots) {
+        for (Slot slot : userSlots.values()) {
+            slot.pending = null;
+        }
+    }
+
+    /**
+     * Forgets userId's highlights that haven't been shown yet. Call it when they leave.
+     */
+    public synchronized void clear(Integer userId) {
+        HashMap<Integer, Slot> userSlots = slots.remove(userId);
+        if (userSlots != null) {
+            dropPending(userSlots);
+        }
+        lastBuf.remove(userId);
+    }
+
+    /**
+     * Forgets every highlight that hasn't been shown yet. Call it when we disconnect.
+     */
+    public synchronized void clear() {
+        for (HashMap<Integer, Slot> userSlots : slots.values()) {
+            dropPending(userSlots);
+        }
+        slots.clear();
+        lastBuf.clear();
+    }
+
+    /**
+     * @return how many highlights were replaced by a newer one before they were shown.
+     */
+    public long getReplaced() {
+        return replaced.get();
+    }
+}
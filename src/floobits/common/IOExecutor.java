@@ -0,0 +1,76 @@
+package floobits.common;
+
+import floobits.utilities.Flog;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking I/O like API requests, gravatar downloads and writing persistent.json, so it never holds up the UI
+ * thread or a network loop. On a JDK with virtual threads every task gets one of its own. Otherwise tasks share at
+ * most maxThreads threads, which go away when they've been idle for a minute.
+ */
+public class IOExecutor {
+    public static int maxThreads = 8;
+    private static ExecutorService executor;
+    private static boolean virtual = false;
+
+    public static synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = create();
+        }
+        return executor;
+    }
+
+    public static synchronized boolean usesVirtualThreads() {
+        get();
+        return virtual;
+    }
+
+    public static void execute(final Runnable runnable) {
+        get().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable e) {
+                    // Not Flog.error, which could upload a crash report from here and fail the same way.
+                    Flog.warn("Background I/O failed: %s", e);
+                }
+            }
+        });
+    }
+
+    private static ExecutorService create() {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() only exists on Java 21 and up.
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService service = (ExecutorService) method.invoke(null);
+            virtual = true;
+            Flog.log("Running blocking I/O on virtual threads.");
+            return service;
+        } catch (Throwable e) {
+            Flog.log("No virtual threads, running blocking I/O on up to %s threads.", maxThreads);
+        }
+        int threads = Math.max(1, maxThreads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, String.format("Floobits IO %s", count.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
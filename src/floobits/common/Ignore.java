@@ -13,39 +13,156 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Ignore implements Comparable<Ignore>{
     static final HashSet<String> IGNORE_FILES = new HashSet<String>(Arrays.asList(".gitignore", ".hgignore", ".flignore", ".flooignore"));
     static final ArrayList<String> DEFAULT_IGNORES = new ArrayList<String>(Arrays.asList("extern", "node_modules", "tmp", "vendor", ".idea/workspace.xml", ".idea/misc.xml"));
     public static final int MAX_FILE_SIZE = 1024 * 1024 * 5;
+    public static int threads = Runtime.getRuntime().availableProcessors();
     public final IFile file;
     public final String stringPath;
-    public final HashMap<String, Ignore> children = new HashMap<String, Ignore>();
+    // Concurrent, since lookups walk it without holding the root.
+    public final ConcurrentHashMap<String, Ignore> children = new ConcurrentHashMap<String, Ignore>();
     public final ArrayList<IFile> files = new ArrayList<IFile>();
-    public int size = 0;
-    private final IgnoreNode ignoreNode = new IgnoreNode();
+    // The length of each file in files when it was added, by name.
+    private final HashMap<String, Long> lengths = new HashMap<String, Long>();
+    // Size of the files directly in this directory. It's bySize's sort key, so only change it with addSize.
+    private long size = 0;
+    // Size of everything under this directory. Guarded by bySize.
+    private long totalSize = 0;
+    private final Ignore parent;
+    // Every change to the tree after it is built happens while holding the root, between the cache's beginChange
+    // and endChange.
+    private final Ignore root;
+    // Replaced when one of this directory's ignore files changes.
+    private volatile IgnoreNode ignoreNode = new IgnoreNode();
+    // Shared by the whole tree.
+    private final IgnoreCache cache;
+    // Every directory in the tree, biggest first. Shared by the whole tree.
+    private final TreeSet<Ignore> bySize;
+    private static final Comparator<Ignore> BY_SIZE = new Comparator<Ignore>() {
+        @Override
+        public int compare(Ignore a, Ignore b) {
+            if (a.size != b.size) {
+                return a.size > b.size ? -1 : 1;
+            }
+            int byPath = a.stringPath.compareTo(b.stringPath);
+            if (byPath != 0) {
+                return byPath;
+            }
+            return Integer.valueOf(System.identityHashCode(a)).compareTo(System.identityHashCode(b));
+        }
+    };
 
     public class UploadData {
-        public HashMap<String, Integer> bigStuff;
+        public HashMap<String, Long> bigStuff;
         public HashSet<String> paths;
-        public UploadData(HashMap<String, Integer> bigStuff, HashSet<String> paths) {
+        public UploadData(HashMap<String, Long> bigStuff, HashSet<String> paths) {
             this.bigStuff = bigStuff;
             this.paths = paths;
         }
     }
 
     public static Ignore BuildIgnore(IFile virtualFile) {
-        Ignore ig = new Ignore(virtualFile);
-        // TODO: add more hard-coded ignores
-        ig.ignoreNode.addRule(new IgnoreRule(".idea/workspace.xml"));
-        ig.ignoreNode.addRule(new IgnoreRule(".idea/misc.xml"));
-        ig.ignoreNode.addRule(new IgnoreRule(".git"));
-        ig.ignoreNode.addRule(new IgnoreRule(".svn"));
-        ig.ignoreNode.addRule(new IgnoreRule(".hg"));
-        ig.recurse(ig, virtualFile.getPath());
+        Ignore ig = new Ignore(virtualFile, null);
+        ArrayList<Ignore> chain = new ArrayList<Ignore>(1);
+        chain.add(ig);
+        new Walker(virtualFile.getPath(), threads).walk(chain);
         return ig;
     }
 
+    private static void addDefaultRules(IgnoreNode node) {
+        // TODO: add more hard-coded ignores
+        node.addRule(new IgnoreRule(".idea/workspace.xml"));
+        node.addRule(new IgnoreRule(".idea/misc.xml"));
+        node.addRule(new IgnoreRule(".git"));
+        node.addRule(new IgnoreRule(".svn"));
+        node.addRule(new IgnoreRule(".hg"));
+    }
+
+    /**
+     * Builds the tree with one task per directory. Each task gets the chain of Ignores from the root down to its
+     * directory, so checking a path never walks down from the root. With one thread the tasks run on the caller's.
+     */
+    private static class Walker {
+        private final String rootPath;
+        // Null when walking on the caller's thread.
+        private final ExecutorService pool;
+        private final LinkedList<List<Ignore>> queue = new LinkedList<List<Ignore>>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        Walker(String rootPath, int threads) {
+            this.rootPath = rootPath;
+            pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        }
+
+        /**
+         * @param chain the Ignores from the root down to the empty one to fill in.
+         */
+        void walk(List<Ignore> chain) {
+            if (pool == null) {
+                queue.add(chain);
+                while (!queue.isEmpty()) {
+                    List<Ignore> next = queue.removeFirst();
+                    next.get(next.size() - 1).recurse(next, this);
+                }
+                return;
+            }
+            submit(chain);
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        done.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // A half built tree would ignore or share the wrong things, so finish first.
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                pool.shutdown();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw new RuntimeException("Couldn't build ignores", error);
+            }
+        }
+
+        void submit(final List<Ignore> chain) {
+            if (pool == null) {
+                queue.add(chain);
+                return;
+            }
+            pending.incrementAndGet();
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (error == null) {
+                            chain.get(chain.size() - 1).recurse(chain, Walker.this);
+                        }
+                    } catch (Throwable e) {
+                        error = e;
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
     public static void writeDefaultIgnores(IContext context) {
         Flog.log("Creating default ignores.");
         String path = FilenameUtils.concat(context.colabDir, ".flooignore");
@@ -66,24 +183,299 @@ public class Ignore implements Comparable<Ignore>{
     }
 
     public Boolean isIgnored(IFile f, String relPath) {
+        relPath = FilenameUtils.separatorsToUnix(relPath);
+        Boolean ignored = cache.get(relPath);
+        if (ignored != null) {
+            return ignored;
+        }
+        // No lock, so lookups run in parallel. If the tree changes while we look, the verdict isn't cached.
+        long generation = cache.getGeneration();
         if (isFlooIgnored(f, f.getPath())) {
             Flog.log("Ignoring %s just because.", f.getPath());
-            return true;
+            ignored = true;
+        } else {
+            ignored = !relPath.equals(stringPath) && isGitIgnored(relPath, f.isDirectory());
         }
-        relPath = FilenameUtils.separatorsToUnix(relPath);
-        return !relPath.equals(stringPath) && isGitIgnored(relPath, f.isDirectory());
+        cache.put(relPath, ignored, generation);
+        return ignored;
     }
 
-    private Ignore(IFile virtualFile) {
+    public IgnoreCache getCache() {
+        return cache;
+    }
+
+    private Ignore(IFile virtualFile, Ignore parent) {
         file = virtualFile;
+        this.parent = parent;
+        root = parent == null ? this : parent.root;
+        cache = parent == null ? new IgnoreCache() : parent.cache;
+        bySize = parent == null ? new TreeSet<Ignore>(BY_SIZE) : parent.bySize;
         stringPath = FilenameUtils.separatorsToUnix(virtualFile.getPath());
         Flog.debug("Initializing ignores for %s", file);
+        readRules();
+        synchronized (bySize) {
+            bySize.add(this);
+        }
+    }
+
+    /**
+     * Keeps the index and every parent's total up to date. Use this instead of changing size directly.
+     */
+    private void addSize(long delta) {
+        if (delta == 0) {
+            return;
+        }
+        synchronized (bySize) {
+            bySize.remove(this);
+            size += delta;
+            bySize.add(this);
+            for (Ignore ignore = this; ignore != null; ignore = ignore.parent) {
+                ignore.totalSize += delta;
+            }
+        }
+    }
+
+    /**
+     * Call this after removing a child from children.
+     */
+    private void detach() {
+        synchronized (bySize) {
+            for (Ignore ignore = parent; ignore != null; ignore = ignore.parent) {
+                ignore.totalSize -= totalSize;
+            }
+            unindex();
+        }
+    }
+
+    private void unindex() {
+        bySize.remove(this);
+        for (Ignore child : children.values()) {
+            child.unindex();
+        }
+    }
+
+    public long getSize() {
+        synchronized (bySize) {
+            return size;
+        }
+    }
+
+    public long getTotalSize() {
+        synchronized (bySize) {
+            return totalSize;
+        }
+    }
+
+    private void readRules() {
+        readRules(null);
+    }
+
+    /**
+     * @param deleted the name of an ignore file that's about to be deleted, so it shouldn't count.
+     */
+    private void readRules(String deleted) {
+        IgnoreNode node = new IgnoreNode();
+        if (parent == null) {
+            addDefaultRules(node);
+        }
         for (IFile vf : file.getChildren()) {
-            addRules(vf);
+            if (!vf.getName().equals(deleted)) {
+                addRules(node, vf);
+            }
+        }
+        ignoreNode = node;
+    }
+
+    /**
+     * Re-reads the ignore files in dir and rebuilds everything under it. Nothing outside of dir can change, so
+     * the rest of the tree is left alone.
+     *
+     * This and the other incremental updates are called from the VFS listener, on the UI thread inside a write
+     * action, so they walk on the caller's thread. Workers would read the VFS without a read action while we wait.
+     */
+    public void rebuild(String dirPath) {
+        rebuild(dirPath, null);
+    }
+
+    /**
+     * @param deleted the name of an ignore file in dir that's about to be deleted. It's left out of the new tree.
+     */
+    private void rebuild(String dirPath, String deleted) {
+        synchronized (root) {
+            List<Ignore> chain = chainTo(dirPath);
+            if (chain == null) {
+                // dir is ignored, so its rules don't matter.
+                return;
+            }
+            Ignore ignore = chain.get(chain.size() - 1);
+            long start = System.currentTimeMillis();
+            cache.beginChange();
+            try {
+                invalidateLocked(dirPath);
+                for (Ignore child : ignore.children.values()) {
+                    child.detach();
+                }
+                ignore.children.clear();
+                ignore.files.clear();
+                ignore.lengths.clear();
+                ignore.addSize(-ignore.getSize());
+                ignore.readRules(deleted);
+                new Walker(root.file.getPath(), 1).walk(chain);
+                if (deleted != null) {
+                    ignore.removeEntry(deleted);
+                }
+            } finally {
+                cache.endChange();
+            }
+            Flog.log("Rebuilt ignores for %s in %sms.", dirPath, System.currentTimeMillis() - start);
         }
     }
 
+    /**
+     * Adds a new file or directory to the tree, unless it's ignored. If it's already in the tree it's checked again,
+     * so call this when a file's contents change too. A new ignore file rebuilds its directory.
+     */
+    public void add(IFile virtualFile) {
+        String absPath = virtualFile.getPath();
+        String dirPath = FilenameUtils.getFullPathNoEndSeparator(absPath);
+        if (isIgnoreFile(virtualFile)) {
+            rebuild(dirPath);
+            return;
+        }
+        synchronized (root) {
+            cache.beginChange();
+            try {
+                addLocked(virtualFile, absPath, dirPath);
+            } finally {
+                cache.endChange();
+            }
+        }
+    }
+
+    private void addLocked(IFile virtualFile, String absPath, String dirPath) {
+        invalidateLocked(absPath);
+        List<Ignore> chain = chainTo(dirPath);
+        if (chain == null) {
+            return;
+        }
+        Ignore ignore = chain.get(chain.size() - 1);
+        String name = virtualFile.getName();
+        ignore.removeEntry(name);
+        if (ignore.isFlooIgnored(virtualFile, absPath)) {
+            return;
+        }
+        boolean isDir = virtualFile.isDirectory();
+        String relPath = FilenameUtils.separatorsToUnix(Utils.toProjectRelPath(absPath, root.file.getPath()));
+        if (isGitIgnored(chain, relPath, isDir)) {
+            return;
+        }
+        if (!isDir) {
+            ignore.addFile(virtualFile);
+            return;
+        }
+        Ignore child = new Ignore(virtualFile, ignore);
+        ignore.children.put(name, child);
+        ArrayList<Ignore> childChain = new ArrayList<Ignore>(chain);
+        childChain.add(child);
+        new Walker(root.file.getPath(), 1).walk(childChain);
+    }
+
+    /**
+     * Drops a deleted file or directory from the tree. Deleting an ignore file rebuilds its directory. The VFS tells
+     * us before the file is gone, so it's skipped instead of read again.
+     */
+    public void remove(String absPath) {
+        String dirPath = FilenameUtils.getFullPathNoEndSeparator(absPath);
+        String name = FilenameUtils.getName(absPath);
+        if (IGNORE_FILES.contains(name)) {
+            rebuild(dirPath, name);
+            return;
+        }
+        synchronized (root) {
+            cache.beginChange();
+            try {
+                invalidateLocked(absPath);
+                List<Ignore> chain = chainTo(dirPath);
+                if (chain != null) {
+                    chain.get(chain.size() - 1).removeEntry(name);
+                }
+            } finally {
+                cache.endChange();
+            }
+        }
+    }
+
+    private void invalidateLocked(String absPath) {
+        String relPath = Utils.toProjectRelPath(absPath, root.file.getPath());
+        if (relPath != null) {
+            cache.invalidate(FilenameUtils.separatorsToUnix(relPath));
+        }
+    }
+
+    private void removeEntry(String name) {
+        Ignore child = children.remove(name);
+        if (child != null) {
+            child.detach();
+            return;
+        }
+        Long length = lengths.remove(name);
+        if (length == null) {
+            return;
+        }
+        Iterator<IFile> iterator = files.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getName().equals(name)) {
+                iterator.remove();
+            }
+        }
+        // The removed file might not be around to ask for its length anymore, so use the one we saw.
+        addSize(-length);
+    }
+
+    /**
+     * Adds virtualFile to files without touching size.
+     * @return its length, which the caller has to add to size.
+     */
+    private long trackFile(IFile virtualFile) {
+        long length = virtualFile.getLength();
+        files.add(virtualFile);
+        lengths.put(virtualFile.getName(), length);
+        return length;
+    }
+
+    private void addFile(IFile virtualFile) {
+        addSize(trackFile(virtualFile));
+    }
+
+    /**
+     * @return the Ignores from the root down to the directory at absPath, or null if it isn't in the tree.
+     */
+    private List<Ignore> chainTo(String absPath) {
+        if (!Utils.isShared(absPath, root.file.getPath())) {
+            return null;
+        }
+        String relPath = FilenameUtils.separatorsToUnix(Utils.toProjectRelPath(absPath, root.file.getPath()));
+        ArrayList<Ignore> chain = new ArrayList<Ignore>();
+        chain.add(root);
+        if (relPath == null || relPath.isEmpty() || relPath.equals(".")) {
+            return chain;
+        }
+        Ignore ignore = root;
+        for (String name : relPath.split("/")) {
+            ignore = ignore.children.get(name);
+            if (ignore == null) {
+                return null;
+            }
+            chain.add(ignore);
+        }
+        return chain;
+    }
+
     protected void addRules(IFile virtualFile) {
+        addRules(ignoreNode, virtualFile);
+    }
+
+    private static void addRules(IgnoreNode node, IFile virtualFile) {
         if (!isIgnoreFile(virtualFile)) {
             return;
         }
@@ -91,38 +483,68 @@ public class Ignore implements Comparable<Ignore>{
         InputStream inputStream = virtualFile.getInputStream();
         if (inputStream != null) {
             try {
-                ignoreNode.parse(inputStream);
+                node.parse(inputStream);
             } catch (IOException e) {
                 Flog.error(e);
             }
         }
     }
 
+    /**
+     * @param chain the Ignores from the root down to this one.
+     */
     @SuppressWarnings("UnsafeVfsRecursion")
-    public void recurse(Ignore root, String rootPath) {
+    private void recurse(List<Ignore> chain, Walker walker) {
         @SuppressWarnings("UnsafeVfsRecursion") IFile[] fileChildren = file.getChildren();
+        long added = 0;
         for (IFile file : fileChildren) {
             String absPath = file.getPath();
             if (isFlooIgnored(file, absPath))  {
                 continue;
             }
-            String relPath = FilenameUtils.separatorsToUnix(Utils.toProjectRelPath(absPath, rootPath));
+            String relPath = FilenameUtils.separatorsToUnix(Utils.toProjectRelPath(absPath, walker.rootPath));
 
             Boolean isDir = file.isDirectory();
-            if (root.isGitIgnored(relPath, isDir)) {
+            if (isGitIgnored(chain, relPath, isDir)) {
                 continue;
             }
 
             if (isDir) {
-                Ignore child = new Ignore(file);
+                Ignore child = new Ignore(file, this);
                 children.put(file.getName(), child);
-                child.recurse(root, rootPath);
+                ArrayList<Ignore> childChain = new ArrayList<Ignore>(chain.size() + 1);
+                childChain.addAll(chain);
+                childChain.add(child);
+                walker.submit(childChain);
                 continue;
             }
 
-            files.add(file);
-            size += file.getLength();
+            added += trackFile(file);
         }
+        addSize(added);
+    }
+
+    /**
+     * Same as isGitIgnored, but follows chain instead of looking children up.
+     */
+    private static boolean isGitIgnored(List<Ignore> chain, String path, boolean isDir) {
+        for (Ignore ignore : chain) {
+            switch (ignore.match(path, isDir)) {
+                case IGNORED:
+                    Flog.log("Ignoring %s because it is ignored by git.", path);
+                    return true;
+                case NOT_IGNORED:
+                    return false;
+                case CHECK_PARENT:
+                    break;
+            }
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                return false;
+            }
+            path = path.substring(slash + 1);
+        }
+        return false;
     }
 
     /**
@@ -132,7 +554,7 @@ public class Ignore implements Comparable<Ignore>{
     *            (uses '/' and not '\').
     **/
     private boolean isGitIgnored(String path, boolean isDir) {
-        IgnoreNode.MatchResult ignored = ignoreNode.isIgnored(path, isDir);
+        IgnoreNode.MatchResult ignored = match(path, isDir);
         switch (ignored) {
             case IGNORED:
                 Flog.log("Ignoring %s because it is ignored by git.", path);
@@ -152,6 +574,10 @@ public class Ignore implements Comparable<Ignore>{
         return ignore != null && ignore.isGitIgnored(path, isDir);
     }
 
+    private IgnoreNode.MatchResult match(String path, boolean isDir) {
+        return ignoreNode.isIgnored(path, isDir);
+    }
+
     public boolean isFlooIgnored(IFile virtualFile, String absPath) {
         if (!file.isValid()) {
             return true;
@@ -167,52 +593,56 @@ public class Ignore implements Comparable<Ignore>{
         return false;
     }
 
-    List<Ignore> buildIgnores(Ignore startIgnore, HashSet<Ignore> ignoredIgnores) {
-        List<Ignore> ignores = new ArrayList<Ignore>();
-        LinkedList<Ignore> tempIgnores = new LinkedList<Ignore>();
-        tempIgnores.add(startIgnore);
-        Ignore ignore;
-        while (tempIgnores.size() > 0) {
-            ignore = tempIgnores.removeLast();
-            if (ignoredIgnores != null && ignoredIgnores.contains(ignore)) {
-                continue;
-            }
-            ignores.add(ignore);
-            for(Ignore ig: ignore.children.values()) {
-                tempIgnores.add(ig);
+    public UploadData getUploadData(Integer maxSize, Utils.FileProcessor<String> fileProcessor) {
+        HashMap<String, Long> bigStuff = getBigStuff(maxSize);
+        return new UploadData(bigStuff, getPaths(bigStuff.keySet(), fileProcessor));
+    }
+
+    /**
+     * Picks the biggest directories to leave out until the rest fits in maxSize. Only looks at as many directories
+     * as it leaves out, so it's fast even on big trees. Must be called on the root.
+     *
+     * @return the absolute paths of the directories to leave out and how big they are.
+     */
+    public HashMap<String, Long> getBigStuff(long maxSize) {
+        HashMap<String, Long> bigStuff = new HashMap<String, Long>();
+        synchronized (bySize) {
+            long total = totalSize;
+            for (Ignore ig : bySize) {
+                if (total <= maxSize) {
+                    break;
+                }
+                bigStuff.put(ig.file.getPath(), ig.size);
+                total -= ig.size;
             }
         }
-        Collections.sort(ignores);
-        return ignores;
+        return bigStuff;
     }
 
-    public UploadData getUploadData(Integer maxSize, Utils.FileProcessor<String> fileProcessor) {
-        HashMap<String, Integer> bigStuff = new HashMap<String, Integer>();
+    /**
+     * @param leftOut absolute paths of directories to skip along with everything under them.
+     */
+    public HashSet<String> getPaths(Set<String> leftOut, Utils.FileProcessor<String> fileProcessor) {
         HashSet<String> paths = new HashSet<String>();
-        HashSet<Ignore> ignoredIgnores = new HashSet<Ignore>();
-        List<Ignore> allIgnores = buildIgnores(this, null);
-        int totalSize = 0;
-        for (Ignore ignore : allIgnores) {
-            totalSize += ignore.size;
-        }
-        while (totalSize > maxSize) {
-            Ignore ig = allIgnores.remove(0);
-            ignoredIgnores.add(ig);
-            totalSize -= ig.size;
-            bigStuff.put(ig.file.getPath(), ig.size);
-        }
-        if (ignoredIgnores.size() > 0) {
-            allIgnores = buildIgnores(this, ignoredIgnores);
-        }
-        for (Ignore ig : allIgnores) {
-            for (IFile virtualFile : ig.files)
-                paths.add(fileProcessor.call(virtualFile));
+        synchronized (root) {
+            LinkedList<Ignore> ignores = new LinkedList<Ignore>();
+            ignores.add(this);
+            while (ignores.size() > 0) {
+                Ignore ig = ignores.removeLast();
+                if (leftOut.contains(ig.file.getPath())) {
+                    continue;
+                }
+                for (IFile virtualFile : ig.files) {
+                    paths.add(fileProcessor.call(virtualFile));
+                }
+                ignores.addAll(ig.children.values());
+            }
         }
-        return new UploadData(bigStuff, paths);
+        return paths;
     }
 
     @Override
     public int compareTo(@NotNull Ignore ignore) {
-        return ignore.size - size;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, ignore.size - size));
     }
 }
@@ -0,0 +1,126 @@
+package floobits.common;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers whether project relative paths are ignored, keyed by directory and then name so a directory and
+ * everything under it can be dropped when an ignore file changes.
+ *
+ * Lookups work out their verdicts without a lock, so the tree can change underneath them. Each change to the tree
+ * happens between beginChange and endChange, and a verdict is only cached if no change overlapped working it out.
+ */
+public class IgnoreCache {
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> dirs =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // Odd while the tree is changing.
+    private final AtomicLong generation = new AtomicLong();
+
+    public Boolean get(String relPath) {
+        ConcurrentHashMap<String, Boolean> names = dirs.get(dir(relPath));
+        Boolean ignored = names == null ? null : names.get(name(relPath));
+        if (ignored == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return ignored;
+    }
+
+    /**
+     * @return pass this to put once the verdict is worked out.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public void beginChange() {
+        generation.incrementAndGet();
+    }
+
+    public void endChange() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Caches ignored for relPath, unless the tree changed since getGeneration returned generation.
+     */
+    public void put(String relPath, boolean ignored, long generation) {
+        if ((generation & 1) != 0 || this.generation.get() != generation) {
+            return;
+        }
+        String dir = dir(relPath);
+        ConcurrentHashMap<String, Boolean> names = dirs.get(dir);
+        if (names == null) {
+            names = new ConcurrentHashMap<String, Boolean>();
+            ConcurrentHashMap<String, Boolean> existing = dirs.putIfAbsent(dir, names);
+            if (existing != null) {
+                names = existing;
+            }
+        }
+        String name = name(relPath);
+        names.put(name, ignored);
+        if (this.generation.get() != generation) {
+            // A change started while we were putting it in, and may have invalidated around it.
+            names.remove(name, ignored);
+        }
+    }
+
+    /**
+     * Forgets relPath and, if it's a directory, everything under it. An empty path clears everything.
+     */
+    public void invalidate(String relPath) {
+        invalidations.incrementAndGet();
+        if (relPath.isEmpty() || relPath.equals(".")) {
+            dirs.clear();
+            return;
+        }
+        ConcurrentHashMap<String, Boolean> names = dirs.get(dir(relPath));
+        if (names != null) {
+            names.remove(name(relPath));
+        }
+        String prefix = relPath + "/";
+        Iterator<String> iterator = dirs.keySet().iterator();
+        while (iterator.hasNext()) {
+            String dir = iterator.next();
+            if (dir.equals(relPath) || dir.startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String dir(String relPath) {
+        int slash = relPath.lastIndexOf('/');
+        return slash < 0 ? "" : relPath.substring(0, slash);
+    }
+
+    private static String name(String relPath) {
+        return relPath.substring(relPath.lastIndexOf('/') + 1);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long total = getHits() + getMisses();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public String toString() {
+        return String.format("hits: %s misses: %s hit rate: %.1f%% invalidations: %s", getHits(), getMisses(),
+                getHitRate() * 100, getInvalidations());
+    }
+}
@@ -9,6 +9,7 @@ import floobits.common.interfaces.IDoc;
 import floobits.common.interfaces.IFile;
 import floobits.common.protocol.FlooPatch;
 import floobits.common.protocol.FlooUser;
+import floobits.common.protocol.RoomInfoReader;
 import floobits.common.protocol.buf.BinaryBuf;
 import floobits.common.protocol.buf.Buf;
 import floobits.common.protocol.buf.TextBuf;
@@ -35,6 +36,9 @@ public class InboundRequestHandler {
     private StatusMessageThrottler fileAddedMessageThrottler;
     private StatusMessageThrottler fileRemovedMessageThrottler;
     private EditorScheduler editor;
+    private final Reconciler reconciler;
+    private final UploadEngine uploadEngine;
+    private final HighlightThrottler highlightThrottler;
 
     enum Events {
         room_info, get_buf, patch, highlight, saved, join, part, create_buf, ack,
@@ -48,28 +52,54 @@ public class InboundRequestHandler {
         this.outbound = outbound;
         this.shouldUpload = shouldUpload;
         this.dirToAdd = dirToAdd;
+        reconciler = new Reconciler(context);
+        uploadEngine = new UploadEngine(context, outbound);
         fileAddedMessageThrottler = new StatusMessageThrottler(context,
                 "%d files were added to the workspace.");
         fileRemovedMessageThrottler = new StatusMessageThrottler(context,
                 "%d files were removed from the workspace.");
+        highlightThrottler = new HighlightThrottler(context, new RunLater<FlooHighlight>() {
+            @Override
+            public void run(FlooHighlight flooHighlight) {
+                _on_highlight(flooHighlight);
+            }
+        });
     }
 
-    private void initialManageConflicts(RoomInfoResponse ri) {
+    /**
+     * Drops highlights that are still waiting to be shown. They're stale once the connection drops.
+     */
+    public void reset() {
+        highlightThrottler.clear();
+    }
+
+    private void initialManageConflicts(final RoomInfoBufs roomInfoBufs, final long joinStarted) {
+        Reconciler.Session session = roomInfoBufs.session;
+        if (session == null) {
+            session = reconciler.start(joinStarted);
+            for (Buf buf : roomInfoBufs.bufs) {
+                session.add(buf);
+            }
+        }
+        session.finish(new Runnable() {
+            @Override
+            public void run() {
+                if (!context.isJoined()) {
+                    return;
+                }
+                manageConflicts(roomInfoBufs.bufs, roomInfoBufs.remoteMd5s);
+                Flog.log("Joined workspace with %s buffers in %sms.", roomInfoBufs.bufs.size(),
+                        System.currentTimeMillis() - joinStarted);
+            }
+        });
+    }
+
+    private void manageConflicts(List<Buf> bufs, HashMap<Buf, String> remoteMd5s) {
         final LinkedList<Buf> conflicts = new LinkedList<Buf>();
         final LinkedList<Buf> missing = new LinkedList<Buf>();
         final LinkedList<String> conflictedPaths = new LinkedList<String>();
-        for (Map.Entry entry : ri.bufs.entrySet()) {
-            Integer buf_id = (Integer) entry.getKey();
-            RoomInfoBuf b = (RoomInfoBuf) entry.getValue();
-            Buf buf = Buf.createBuf(b.path, b.id, Encoding.from(b.encoding), b.md5, context, outbound);
-            if (state.bufs == null) {
-                Flog.warn("Buffer list became null. Probably disconnected. Bailing.");
-                return;
-            }
-            state.bufs.put(buf_id, buf);
-            state.pathsToIds.put(b.path, b.id);
-            buf.read();
-            if (buf.buf == null) {
+        for (Buf buf : bufs) {
+            if (!buf.isPopulated()) {
                 if (buf.path.equals("FLOOBITS_README.md") && buf.id == 1) {
                     outbound.getBuf(buf.id);
                     continue;
@@ -78,7 +108,7 @@ public class InboundRequestHandler {
                 conflictedPaths.add(buf.path);
                 continue;
             }
-            if (!b.md5.equals(buf.md5)) {
+            if (!remoteMd5s.get(buf).equals(buf.md5)) {
                 conflicts.add(buf);
                 conflictedPaths.add(buf.path);
             }
@@ -127,7 +157,7 @@ public class InboundRequestHandler {
                 connectedUsersList.toArray(new String[connectedUsersList.size()]));
     }
 
-    private void initialUpload(RoomInfoResponse ri) {
+    private void initialUpload(RoomInfoResponse ri, RoomInfoBufs roomInfoBufs) {
         context.statusMessage("Overwriting remote files and uploading new ones.");
         context.flashMessage("Overwriting remote files and uploading new ones.");
 
@@ -137,20 +167,15 @@ public class InboundRequestHandler {
         } else {
             ignoreTree = Ignore.BuildIgnore(dirToAdd);
         }
-        Ignore.UploadData uploadData = ignoreTree.getUploadData(ri.max_size, new Utils.FileProcessor<String>() {
-            @Override
-            public String call(IFile file) {
-                return context.toProjectRelPath(file.getPath());
-            }
-        });
-        if (uploadData.bigStuff.size() > 0) {
-            if (uploadData.bigStuff.size() > Constants.TOO_MANY_BIG_DIRS) {
-                context.dialogDisconnect(ri.max_size / 1000, uploadData.bigStuff.size());
+        final HashMap<String, Long> bigStuff = ignoreTree.getBigStuff(ri.max_size);
+        if (bigStuff.size() > 0) {
+            if (bigStuff.size() > Constants.TOO_MANY_BIG_DIRS) {
+                context.dialogDisconnect(ri.max_size / 1000, bigStuff.size());
                 return;
             }
             boolean shouldContinue;
 
-            shouldContinue = context.dialogTooBig(uploadData.bigStuff);
+            shouldContinue = context.dialogTooBig(bigStuff);
 
             if (!shouldContinue) {
                 context.shutdown();
@@ -160,48 +185,47 @@ public class InboundRequestHandler {
         if (state == null || state.bufs == null) {
             return;
         }
-        for (Map.Entry entry : ri.bufs.entrySet()) {
-            Integer buf_id = (Integer) entry.getKey();
-            RoomInfoBuf b = (RoomInfoBuf) entry.getValue();
-            Buf buf = Buf.createBuf(b.path, b.id, Encoding.from(b.encoding), b.md5, context, outbound);
-            try {
-                state.bufs.put(buf_id, buf);
-            } catch (NullPointerException e) {
-                Flog.warn("state.bufs is null, tried to upload after disconnecting. This is a race condition.");
-                return;
+        HashSet<String> paths = ignoreTree.getPaths(bigStuff.keySet(), new Utils.FileProcessor<String>() {
+            @Override
+            public String call(IFile file) {
+                return context.toProjectRelPath(file.getPath());
             }
-            state.pathsToIds.put(b.path, b.id);
-            if (!uploadData.paths.contains(buf.path)) {
+        });
+        final LinkedList<Buf> bufs = new LinkedList<Buf>();
+        final HashMap<Buf, String> remoteMd5s = roomInfoBufs.remoteMd5s;
+        for (Buf buf : roomInfoBufs.bufs) {
+            if (!paths.contains(buf.path)) {
                 outbound.deleteBuf(buf, false);
                 continue;
             }
-            uploadData.paths.remove(buf.path);
-            buf.read();
-            if (buf.buf == null) {
-                Flog.warn("%s is null but we want to upload it?", b.path);
-                outbound.getBuf(buf.id);
-                continue;
-            }
-            if (b.md5.equals(buf.md5)) {
-                continue;
-            }
-            outbound.setBuf(buf);
-            outbound.saveBuf(buf);
+            paths.remove(buf.path);
+            bufs.add(buf);
         }
-
-
-        for (String path : uploadData.paths) {
-            IFile fileByPath = context.iFactory.findFileByPath(context.absPath(path));
-            if (fileByPath == null || !fileByPath.isValid()) {
-                Flog.warn("path is no longer a valid virtual file");
-                continue;
+        reconciler.read(bufs, new Runnable() {
+            @Override
+            public void run() {
+                if (!context.isJoined()) {
+                    return;
+                }
+                for (Buf buf : bufs) {
+                    if (!buf.isPopulated()) {
+                        Flog.warn("%s is null but we want to upload it?", buf.path);
+                        outbound.getBuf(buf.id);
+                        continue;
+                    }
+                    if (remoteMd5s.get(buf).equals(buf.md5)) {
+                        continue;
+                    }
+                    outbound.setBuf(buf);
+                    outbound.saveBuf(buf);
+                }
             }
-            outbound.createBuf(fileByPath);
-        }
+        });
+        uploadEngine.upload(paths);
         String flooignore = FilenameUtils.concat(context.colabDir, ".flooignore");
+        File f = new File(flooignore);
 
         try {
-            File f = new File(flooignore);
             List<String> strings;
             if (f.exists()) {
                 strings = FileUtils.readLines(f);
@@ -209,7 +233,7 @@ public class InboundRequestHandler {
                 strings = new ArrayList<String>();
             }
 
-            for (Map.Entry<String, Integer> bigData : uploadData.bigStuff.entrySet()) {
+            for (Map.Entry<String, Long> bigData : bigStuff.entrySet()) {
                 String rule = "/" + context.toProjectRelPath(FilenameUtils.separatorsToUnix(bigData.getKey()));
                 if (!rule.endsWith("/")) {
                     rule += "/";
@@ -217,7 +241,7 @@ public class InboundRequestHandler {
                 rule += "*";
                 strings.add(rule);
             }
-            context.setListener(false);
+            context.suppressed.suppress(f.getPath());
             FileUtils.writeLines(f, strings);
             IFile fileByIoFile = context.iFactory.findFileByIoFile(f);
             if (fileByIoFile != null) {
@@ -227,7 +251,7 @@ public class InboundRequestHandler {
         } catch (IOException e) {
             Flog.error(e);
         } finally {
-            context.setListener(true);
+            context.suppressed.release(f.getPath());
         }
         shouldUpload = false;
         dirToAdd = null;
@@ -248,7 +272,7 @@ public class InboundRequestHandler {
             return;
         }
 
-        editor.queue(buf, new RunLater<Buf>() {
+        editor.queue(buf, "rename_buf", new RunLater<Buf>() {
                     @Override
                     public void run(Buf buf) {
                         final IFile foundFile = context.iFactory.findFileByPath(oldPath);
@@ -323,6 +347,7 @@ public class InboundRequestHandler {
             return;
         }
         state.removeUser(user.user_id);
+        highlightThrottler.clear(user.user_id);
         context.removeUser(user);
     }
 
@@ -331,19 +356,18 @@ public class InboundRequestHandler {
         if (state == null || state.bufs == null) {
             return;
         }
+        // Free its get_buf slot now instead of once the editor gets to the delete.
+        outbound.cancelFetch(deleteBuf.id);
         Buf buf = state.bufs.get(deleteBuf.id);
         if (buf == null) {
             Flog.warn(String.format("Tried to delete a buf that doesn't exist: %d", deleteBuf.id));
             return;
         }
-        editor.queue(buf, new RunLater<Buf>() {
+        editor.queue(buf, "delete_buf", new RunLater<Buf>() {
             @Override
             public void run(Buf buf) {
                 buf.cancelTimeout();
-                if (state.bufs != null) {
-                    state.bufs.remove(deleteBuf.id);
-                    state.pathsToIds.remove(buf.path);
-                }
+                state.removeBuf(buf);
                 if (!deleteBuf.unlink) {
                     fileRemovedMessageThrottler.statusMessage(String.format("Removed the file, %s, from the workspace.", buf.path));
                     return;
@@ -391,7 +415,9 @@ public class InboundRequestHandler {
             return;
         }
         state.lastUserHighlights.put(user.username, res);
-        _on_highlight(res);
+        boolean followed = state.getFollowing() && !Boolean.TRUE.equals(res.following) &&
+                (state.followedUsers.size() == 0 || state.followedUsers.contains(user.username));
+        highlightThrottler.highlight(res, followed);
     }
 
     public void _on_highlight(final FlooHighlight flooHighlight) {
@@ -399,7 +425,7 @@ public class InboundRequestHandler {
             return;
         }
         final Buf buf = state.bufs.get(flooHighlight.id);
-        editor.queue(buf, new RunLater<Buf>() {
+        editor.queueHighlight(buf, flooHighlight.user_id, new RunLater<Buf>() {
             @Override
             public void run(Buf arg) {
                 IDoc iDoc = context.iFactory.getDocument(buf.path);
@@ -429,7 +455,7 @@ public class InboundRequestHandler {
             return;
         }
         final Buf buf = state.bufs.get(id);
-        editor.queue(buf, new RunLater<Buf>() {
+        editor.queueSave(buf, new RunLater<Buf>() {
             public void run(Buf b) {
                 IDoc document = context.iFactory.getDocument(buf.path);
                 if (document == null) {
@@ -451,14 +477,12 @@ public class InboundRequestHandler {
         } else {
             buf = new TextBuf(res.path, res.id, res.buf, res.md5, context, outbound);
         }
-        editor.queue(buf, new RunLater<Buf>() {
+        editor.queue(buf, "create_buf", new RunLater<Buf>() {
             @Override
             public void run(Buf buf) {
-                if (state.bufs == null) {
+                if (!state.addBuf(buf)) {
                     return;
                 }
-                state.bufs.put(buf.id, buf);
-                state.pathsToIds.put(buf.path, buf.id);
                 buf.write();
                 fileAddedMessageThrottler.statusMessage(String.format("Added the file, %s, to the workspace.", buf.path));
             }
@@ -498,30 +522,130 @@ public class InboundRequestHandler {
             return;
         }
         final Buf buf = this.state.bufs.get(res.id);
-        editor.queue(buf, new RunLater<Buf>() {
+        editor.queuePatch(buf, res, new RunLater<FlooPatch>() {
             @Override
-            public void run(Buf b) {
-                if (b.buf == null) {
+            public void run(FlooPatch patch) {
+                if (!buf.ensureContents()) {
                     Flog.warn("no buffer");
-                    outbound.getBuf(res.id);
+                    outbound.getBuf(patch.id);
                     return;
                 }
 
-                if (res.patch.length() == 0) {
+                if (patch.patch.length() == 0) {
                     Flog.warn("wtf? no patches to apply. server is being stupid");
                     return;
                 }
-                b.patch(res);
+                buf.patch(patch);
             }
         });
     }
+    void _on_ack(JsonObject obj) {
+        JsonElement reqId = obj.get("req_id");
+        if (reqId == null || reqId.isJsonNull()) {
+            return;
+        }
+        final int req_id = reqId.getAsInt();
+        Buf buf = state.patchAcked(req_id);
+        if (buf == null) {
+            return;
+        }
+        boolean sendDeferred = buf.acked(req_id);
+        state.forgetAckedPatches(buf);
+        if (!sendDeferred) {
+            return;
+        }
+        editor.queue(buf, "ack", new RunLater<Buf>() {
+            @Override
+            public void run(Buf b) {
+                if (Buf.isBad(b)) {
+                    return;
+                }
+                b.sendDeferred();
+            }
+        });
+    }
+
+    /**
+     * Creates the buffers from room_info as they're parsed. Unless we're uploading, their local contents are read
+     * right away too.
+     */
+    private class RoomInfoBufs extends RunLater<RoomInfoBuf> {
+        final LinkedList<Buf> bufs = new LinkedList<Buf>();
+        // Reading a buffer replaces its md5 with the local one, so keep the remote ones around.
+        final HashMap<Buf, String> remoteMd5s = new HashMap<Buf, String>();
+        final Reconciler.Session session;
+
+        RoomInfoBufs(long joinStarted) {
+            session = shouldUpload ? null : reconciler.start(joinStarted);
+        }
+
+        @Override
+        public void run(RoomInfoBuf b) {
+            Buf buf = Buf.createBuf(b.path, b.id, Encoding.from(b.encoding), b.md5, context, outbound);
+            if (!state.addBuf(buf)) {
+                Flog.warn("Buffer list became null. Probably disconnected. Bailing.");
+                return;
+            }
+            bufs.add(buf);
+            remoteMd5s.put(buf, b.md5);
+            if (session != null) {
+                session.add(buf);
+            }
+        }
+
+        void cancel() {
+            if (session != null) {
+                session.cancel();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     void _on_room_info(final JsonObject obj) {
+        long joinStarted = System.currentTimeMillis();
+        long heapBefore = usedHeap();
+        RoomInfoResponse ri = new Gson().fromJson(obj, (Type) RoomInfoResponse.class);
+        RoomInfoBufs roomInfoBufs = new RoomInfoBufs(joinStarted);
+        if (ri.bufs != null) {
+            for (RoomInfoBuf b : ri.bufs.values()) {
+                roomInfoBufs.run(b);
+            }
+        }
+        Flog.log("Parsed room_info with %s buffers in %sms. Heap went from %s to %s bytes.", roomInfoBufs.bufs.size(),
+                System.currentTimeMillis() - joinStarted, heapBefore, usedHeap());
+        roomInfo(ri, roomInfoBufs, joinStarted);
+    }
+
+    /**
+     * Like _on_room_info, but parses msg as it goes instead of building the whole thing first.
+     */
+    public void on_room_info(String msg) throws IOException {
+        long joinStarted = System.currentTimeMillis();
+        long heapBefore = usedHeap();
+        RoomInfoBufs roomInfoBufs = new RoomInfoBufs(joinStarted);
+        RoomInfoResponse ri = null;
+        try {
+            ri = RoomInfoReader.read(msg, roomInfoBufs);
+        } finally {
+            if (ri == null) {
+                roomInfoBufs.cancel();
+            }
+        }
+        Flog.log("Streamed room_info with %s buffers in %sms. Heap went from %s to %s bytes.",
+                roomInfoBufs.bufs.size(), System.currentTimeMillis() - joinStarted, heapBefore, usedHeap());
+        roomInfo(ri, roomInfoBufs, joinStarted);
+    }
+
+    private void roomInfo(final RoomInfoResponse ri, final RoomInfoBufs roomInfoBufs, final long joinStarted) {
         context.setupFloobitsWindow();
-        context.readThread(new Runnable() {
+        context.readThread("room_info", new Runnable() {
             @Override
             public void run() {
                 try {
-                    RoomInfoResponse ri = new Gson().fromJson(obj, (Type) RoomInfoResponse.class);
                     state.handleRoomInfo(ri);
                     context.statusMessage(String.format("You successfully joined %s.",
                             Utils.getLinkHTML(state.url.toString(), state.url.toString())));
@@ -543,12 +667,12 @@ public class InboundRequestHandler {
                     }
                     if (shouldUpload) {
                         if (!state.readOnly) {
-                            initialUpload(ri);
+                            initialUpload(ri, roomInfoBufs);
                             return;
                         }
                         context.statusMessage("You don't have permission to update remote files.");
                     }
-                    initialManageConflicts(ri);
+                    initialManageConflicts(roomInfoBufs, joinStarted);
                 } catch (Throwable e) {
                     API.uploadCrash(context, e);
                     context.errorMessage("There was a critical error in the plugin" + e.toString());
@@ -564,8 +688,9 @@ public class InboundRequestHandler {
         }
         Gson gson = new Gson();
         final GetBufResponse res = gson.fromJson(obj, (Type) GetBufResponse.class);
+        outbound.gotBuf(res.id);
         Buf b = state.bufs.get(res.id);
-        editor.queue(b, new RunLater<Buf>() {
+        editor.queue(b, "get_buf", new RunLater<Buf>() {
             @Override
             public void run(Buf b) {
                 b.set(res.buf, res.md5);
@@ -634,6 +759,7 @@ public class InboundRequestHandler {
                 _on_ping(obj);
                 break;
             case ack:
+                _on_ack(obj);
                 break;
             default:
                 Flog.log("No handler for %s", name);
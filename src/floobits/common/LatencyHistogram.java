@@ -0,0 +1,117 @@
+package floobits.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that double in size, from 64 microseconds up to about half a minute. Recording is a
+ * couple of atomic adds, so it's cheap enough to do for every action on the UI thread. Percentiles are the upper bound
+ * of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 20;
+    // Bucket i holds durations up to 64us << i. The last one holds everything longer.
+    private static final long FIRST_BOUND_NANOS = 64 * 1000L;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketFor(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    private static int bucketFor(long nanos) {
+        int i = 0;
+        long bound = FIRST_BOUND_NANOS;
+        while (i < BUCKETS && nanos > bound) {
+            bound <<= 1;
+            i++;
+        }
+        return i;
+    }
+
+    private static double boundMillis(int bucket) {
+        return (FIRST_BOUND_NANOS << bucket) / 1000000.0;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @param fraction between 0 and 1, like 0.99 for the 99th percentile.
+     */
+    public double getPercentileMillis(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(boundMillis(i), getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public void reset() {
+        for (int i = 0; i <= BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    /**
+     * @return the summary and the non-empty buckets, for dumping as JSON.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("count", getCount());
+        map.put("mean_ms", round(getMeanMillis()));
+        map.put("p50_ms", round(getPercentileMillis(0.5)));
+        map.put("p90_ms", round(getPercentileMillis(0.9)));
+        map.put("p99_ms", round(getPercentileMillis(0.99)));
+        map.put("max_ms", round(getMaxMillis()));
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i <= BUCKETS; i++) {
+            long c = buckets.get(i);
+            if (c == 0) {
+                continue;
+            }
+            counts.put(i < BUCKETS ? String.format("<=%s", round(boundMillis(i))) : String.format(">%s",
+                    round(boundMillis(BUCKETS - 1))), c);
+        }
+        map.put("buckets_ms", counts);
+        return map;
+    }
+
+    private static double round(double millis) {
+        return Math.round(millis * 1000) / 1000.0;
+    }
+}
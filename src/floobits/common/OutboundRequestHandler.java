@@ -12,17 +12,70 @@ import floobits.utilities.Flog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class OutboundRequestHandler {
+    // How long a patch can go without an ack before we give up on it and fetch the buffer again.
+    public static int patchAckTimeout = 30000;
     private final IContext context;
     private final FloobitsState state;
     private final Connection conn;
     private FlooHighlight previousHighlight;
+    private final FetchScheduler fetches;
+    // req_id of each get_buf we sent to the buffer it's for, so an error can free its slot.
+    private final ConcurrentHashMap<Integer, Integer> getBufRequests = new ConcurrentHashMap<Integer, Integer>();
+    private final EditorPriority priorities;
 
-    public OutboundRequestHandler(IContext context, FloobitsState state, Connection conn) {
+    public OutboundRequestHandler(IContext context, FloobitsState state, final Connection conn) {
         this.context = context;
         this.state = state;
         this.conn = conn;
+        priorities = new EditorPriority(context);
+        fetches = new FetchScheduler(context, new RunLater<Integer>() {
+            @Override
+            public void run(Integer buf_id) {
+                GetBuf req = new GetBuf(buf_id);
+                getBufRequests.put(req.req_id, buf_id);
+                conn.write(req);
+            }
+        });
+    }
+
+    /**
+     * Forgets requests from a previous connection, since their responses will never come.
+     */
+    public void reset() {
+        fetches.reset();
+        getBufRequests.clear();
+    }
+
+    /**
+     * Called when the server answers reqId with an error.
+     */
+    public void requestFailed(int reqId) {
+        Buf patched = state.patchAcked(reqId);
+        if (patched != null) {
+            Flog.warn("Patch for %s failed. Fetching it again.", patched.path);
+            patchLost(patched, reqId);
+            return;
+        }
+        Integer buf_id = getBufRequests.remove(reqId);
+        if (buf_id == null) {
+            return;
+        }
+        Flog.warn("get_buf for %s failed.", buf_id);
+        fetches.cancel(buf_id);
+    }
+
+    /**
+     * The server won't ack the patch with reqId, so it and everything after it are out of sync. Forgets them all,
+     * which frees the buffer's window, and fetches the buffer again.
+     */
+    private void patchLost(Buf buf, int reqId) {
+        buf.patchFailed(reqId);
+        state.forgetPatches(buf);
+        getBuf(buf.id);
     }
 
     public void getBuf(Integer buf_id) {
@@ -34,10 +87,18 @@ public class OutboundRequestHandler {
         if (buf == null) {
             return;
         }
-        synchronized (buf) {
-            buf.set(null, null);
-        }
-        conn.write(new GetBuf(buf_id));
+        buf.reset();
+        fetches.fetch(buf_id, priorities.get(buf.path));
+    }
+
+    void gotBuf(Integer buf_id) {
+        getBufRequests.values().removeAll(Collections.singleton(buf_id));
+        fetches.received(buf_id);
+    }
+
+    void cancelFetch(Integer buf_id) {
+        getBufRequests.values().removeAll(Collections.singleton(buf_id));
+        fetches.cancel(buf_id);
     }
 
     public void patch(String textPatch, String before_md5, TextBuf b) {
@@ -49,8 +110,27 @@ public class OutboundRequestHandler {
             return;
         }
         Flog.log("Sending patch for %s", b.path);
-        FlooPatch req = new FlooPatch(textPatch, before_md5, b);
-        conn.write(req);
+        final FlooPatch req = new FlooPatch(textPatch, before_md5, b);
+        // Recorded before the write so an ack can't beat it here, and taken back if nothing was written.
+        state.patchSent(req.req_id, b);
+        b.patchSent(req);
+        if (!conn.write(req, null)) {
+            Flog.warn("Couldn't send patch for %s.", b.path);
+            state.patchAcked(req.req_id);
+            b.patchFailed(req.req_id);
+            return;
+        }
+        final Buf buf = b;
+        context.setTimeout(patchAckTimeout, new Runnable() {
+            @Override
+            public void run() {
+                if (!buf.isPatchPending(req.req_id)) {
+                    return;
+                }
+                Flog.warn("No ack for patch to %s after %sms. Fetching it again.", buf.path, patchAckTimeout);
+                patchLost(buf, req.req_id);
+            }
+        });
     }
 
     void createBuf(IFile virtualFile) {
@@ -58,10 +138,17 @@ public class OutboundRequestHandler {
         if (buf == null) {
             return;
         }
+        createBuf(buf, null);
+    }
+
+    /**
+     * @return false if nothing was sent, in which case onWritten won't be called.
+     */
+    boolean createBuf(Buf buf, Runnable onWritten) {
         if (!state.can("patch")) {
-            return;
+            return false;
         }
-        conn.write(new CreateBuf(buf));
+        return conn.write(new CreateBuf(buf), onWritten);
     }
 
     public void deleteBuf(Buf buf, boolean unlink) {
@@ -69,6 +156,7 @@ public class OutboundRequestHandler {
             return;
         }
         buf.cancelTimeout();
+        fetches.cancel(buf.id);
         conn.write(new DeleteBuf(buf.id, unlink));
     }
 
@@ -95,7 +183,13 @@ public class OutboundRequestHandler {
         if (!state.can("patch")) {
             return;
         }
+        if (!b.ensureContents()) {
+            Flog.warn("Not sending set_buf. Contents of %s changed on disk since we read them.", b.path);
+            getBuf(b.id);
+            return;
+        }
         b.cancelTimeout();
+        b.clearPending();
         conn.write(new SetBuf(b));
     }
 
@@ -108,25 +202,30 @@ public class OutboundRequestHandler {
         conn.write(new RenameBuf(b.id, b.path));
     }
 
-    public void highlight(Buf b, ArrayList<ArrayList<Integer>> textRanges, boolean summon, boolean following) {
+    /**
+     * @return false if the highlight couldn't be sent, like when the buffer isn't populated yet.
+     */
+    public boolean highlight(Buf b, ArrayList<ArrayList<Integer>> textRanges, boolean summon, boolean following) {
         if (!state.can("highlight")) {
-            return;
+            return false;
         }
         if (textRanges.size() == 0) {
             Flog.info("Attempt to send a highlight with no ranges.");
-            return;
+            return false;
         }
         if (Buf.isBad(b)) {
             Flog.info("Not sending highlight. Buf isn't populated yet %s", b != null ? b.path : "?");
-            return;
+            return false;
         }
 
         FlooHighlight flooHighlight = new FlooHighlight(b, textRanges, summon, following);
         if (flooHighlight.equals(previousHighlight)) {
-            return;
+            // The server already has it.
+            return true;
         }
         previousHighlight = flooHighlight;
         conn.write(flooHighlight);
+        return true;
     }
 
     public void summon(String current, Integer offset, String username) {
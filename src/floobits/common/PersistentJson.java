@@ -13,9 +13,19 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 
 public class PersistentJson {
+    // Other editors write this file too, so it's only kept in memory while our own writes are pending.
+    private static final SerialExecutor writes = new SerialExecutor(new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            IOExecutor.get().execute(runnable);
+        }
+    });
+    private static int pendingWrites = 0;
+    private static String latest;
     public HashMap<String, Map<String, Workspace>> workspaces = new HashMap<String, Map<String,Workspace>>();
     public Boolean auto_generated_account = false;
     public Boolean disable_account_creation = false;
@@ -68,13 +78,31 @@ public class PersistentJson {
         this.recent_workspaces = unique;
     }
 
+    /**
+     * Writes in the background, in the order save was called. Until the last write is done getInstance returns
+     * what was saved instead of reading the file.
+     */
     public void save ()  {
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        try {
-            FileUtils.write(getFile(), gson.toJson(this), "UTF-8");
-        } catch (Throwable e) {
-            Flog.error(e);
+        final String json = gson.toJson(this);
+        synchronized (PersistentJson.class) {
+            pendingWrites++;
+            latest = json;
         }
+        writes.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileUtils.write(getFile(), json, "UTF-8");
+                } catch (Throwable e) {
+                    Flog.error(e);
+                } finally {
+                    synchronized (PersistentJson.class) {
+                        pendingWrites--;
+                    }
+                }
+            }
+        });
     }
 
     public static File getFile() {
@@ -84,11 +112,16 @@ public class PersistentJson {
     public static PersistentJson getInstance() {
         String s;
         String defaultJSON = "{}";
-        try {
-            s = FileUtils.readFileToString(getFile(), "UTF-8");
-        } catch (Throwable e) {
-            Flog.info("Couldn't find persistent.json");
-            s = defaultJSON;
+        synchronized (PersistentJson.class) {
+            s = pendingWrites > 0 ? latest : null;
+        }
+        if (s == null) {
+            try {
+                s = FileUtils.readFileToString(getFile(), "UTF-8");
+            } catch (Throwable e) {
+                Flog.info("Couldn't find persistent.json");
+                s = defaultJSON;
+            }
         }
         PersistentJson pj;
         try {
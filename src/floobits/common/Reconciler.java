@@ -0,0 +1,260 @@
+package floobits.common;
+
+import floobits.common.interfaces.IContext;
+import floobits.common.protocol.buf.Buf;
+import floobits.utilities.Flog;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the local copy of every buffer in room_info so we can compare md5s. Files are read and hashed on a small
+ * worker pool as soon as we know about them, in EditorPriority order. Only files with unsaved changes in an editor
+ * are read from their document on the read thread.
+ *
+ * Each buffer's turn on its serial executor is held until it has been read, so patches and get_buf replies that
+ * come in meanwhile wait instead of being overwritten by what's on disk.
+ */
+public class Reconciler {
+    public static int maxWorkers = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    private static final AtomicLong sequence = new AtomicLong();
+    // Shared by every session and created the first time it's needed, after maxWorkers is read from .floorc.
+    private static ThreadPoolExecutor workers;
+    private final IContext context;
+
+    public Reconciler(IContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Reads buffers as they're added, the ones the user is looking at first.
+     */
+    public class Session {
+        private final long started;
+        private final HashSet<String> unsavedPaths = new HashSet<String>();
+        private final EditorPriority priorities = new EditorPriority(context);
+        // One extra for finish, so we can't be done before everything was added.
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicInteger unsaved = new AtomicInteger();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong firstReady = new AtomicLong();
+        private volatile Runnable done;
+        private volatile boolean cancelled = false;
+
+        private class ReadTask implements Runnable, Comparable<ReadTask> {
+            final Buf buf;
+            final int priority;
+            final SerialExecutor.Turn turn;
+            final long order = sequence.incrementAndGet();
+
+            ReadTask(Buf buf, int priority, SerialExecutor.Turn turn) {
+                this.buf = buf;
+                this.priority = priority;
+                this.turn = turn;
+            }
+
+            @Override
+            public void run() {
+                turn.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cancelled) {
+                            return;
+                        }
+                        try {
+                            byte[] bytes = readBytes(new File(context.absPath(buf.path)));
+                            if (bytes != null) {
+                                bytesRead.addAndGet(bytes.length);
+                                buf.read(bytes);
+                                ready(buf, priority);
+                            }
+                        } catch (Throwable e) {
+                            Flog.warn("Couldn't read %s: %s", buf.path, e);
+                        } finally {
+                            countDown();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public int compareTo(ReadTask other) {
+                if (priority != other.priority) {
+                    return priority < other.priority ? -1 : 1;
+                }
+                return order < other.order ? -1 : (order == other.order ? 0 : 1);
+            }
+        }
+
+        private final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                long first = firstReady.get();
+                Flog.log("Read %s buffers (%s bytes from disk, %s unsaved documents) in %sms with %s workers on %s cores.",
+                        count.get(), bytesRead.get(), unsaved.get(), now - started, maxWorkers,
+                        Runtime.getRuntime().availableProcessors());
+                Flog.log("First buffer was ready %sms after room_info.", (first == 0 ? now : first) - started);
+                done.run();
+            }
+        };
+
+        Session(long started) {
+            this.started = started;
+            for (String path : context.iFactory.getUnsavedDocumentPaths()) {
+                String relPath = context.toProjectRelPath(path);
+                if (relPath != null) {
+                    unsavedPaths.add(FilenameUtils.separatorsToUnix(relPath));
+                }
+            }
+        }
+
+        public void add(final Buf buf) {
+            count.incrementAndGet();
+            remaining.incrementAndGet();
+            final int priority = priorities.get(buf.path);
+            final boolean isUnsaved = unsavedPaths.contains(buf.path);
+            if (isUnsaved) {
+                unsaved.incrementAndGet();
+            }
+            buf.serial.submit(new RunLater<SerialExecutor.Turn>() {
+                @Override
+                public void run(SerialExecutor.Turn turn) {
+                    if (!isUnsaved) {
+                        getWorkers().execute(new ReadTask(buf, priority, turn));
+                        return;
+                    }
+                    readUnsaved(buf, priority, turn);
+                }
+            });
+        }
+
+        /**
+         * Unsaved changes only exist in the document. These are usually the files being edited, so don't wait.
+         */
+        private void readUnsaved(final Buf buf, final int priority, final SerialExecutor.Turn turn) {
+            context.readThread("read unsaved", new Runnable() {
+                @Override
+                public void run() {
+                    turn.run(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                buf.read();
+                                ready(buf, priority);
+                            } finally {
+                                countDown();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Calls done from the read thread once every buffer that exists locally has its contents. Buffers that
+         * don't exist locally are left empty.
+         */
+        public void finish(Runnable done) {
+            this.done = done;
+            countDown();
+        }
+
+        /**
+         * Skips the reads that haven't started yet. done is never called.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void ready(Buf buf, int priority) {
+            long now = System.currentTimeMillis();
+            firstReady.compareAndSet(0, now);
+            if (priority == EditorPriority.SELECTED) {
+                Flog.log("Selected file %s was ready %sms after room_info.", buf.path, now - started);
+            }
+        }
+
+        private void countDown() {
+            if (remaining.decrementAndGet() == 0) {
+                context.readThread("reconcile", finish);
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getWorkers() {
+        if (workers == null) {
+            int count = Math.max(1, maxWorkers);
+            workers = new ThreadPoolExecutor(count, count, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger threads = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, String.format("Floobits reconcile %s",
+                                    threads.incrementAndGet()));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    /**
+     * @param started when we got room_info, for timing.
+     */
+    public Session start(long started) {
+        return new Session(started);
+    }
+
+    public void read(List<Buf> bufs, Runnable done) {
+        Session session = start(System.currentTimeMillis());
+        for (Buf buf : bufs) {
+            session.add(buf);
+        }
+        session.finish(done);
+    }
+
+    /**
+     * @return null if file isn't a regular file.
+     */
+    static byte[] readBytes(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too big to read (%s bytes)", file, size));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    // The file got shorter while we were reading it.
+                    return Arrays.copyOf(buffer.array(), buffer.position());
+                }
+            }
+            return buffer.array();
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package floobits.common;
+
+import floobits.common.interfaces.IContext;
+
+import java.util.ArrayList;
+
+/**
+ * Sends our caret and selection as a highlight at most maxPerSecond times a second. Caret, selection and scroll
+ * events only mark that something changed. When it's time to send, the editor is sampled once into a reused
+ * Selection, and nothing is sent unless it's different from what was sent last.
+ *
+ * Only used from the UI thread.
+ */
+public class SelectionPublisher {
+    public static int maxPerSecond = 10;
+    private final IContext context;
+    private final EditorEventHandler editorManager;
+    private final RunLater<Selection> sample;
+    private Selection next = new Selection();
+    private Selection sent = new Selection();
+    private boolean pending = false;
+    private boolean pendingFollowing = false;
+    private boolean scheduled = false;
+    private long lastFlush = 0;
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable flushLater = new Runnable() {
+        @Override
+        public void run() {
+            context.mainThread(flush);
+        }
+    };
+
+    /**
+     * Offsets are kept in an int array that only grows, so sampling doesn't allocate.
+     */
+    public static class Selection {
+        public String path;
+        public boolean following;
+        private int[] offsets = new int[8];
+        private int size = 0;
+
+        public void clear() {
+            path = null;
+            following = false;
+            size = 0;
+        }
+
+        public void add(int start, int end) {
+            if (size + 2 > offsets.length) {
+                int[] bigger = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, bigger, 0, size);
+                offsets = bigger;
+            }
+            offsets[size++] = start;
+            offsets[size++] = end;
+        }
+
+        /**
+         * Adds every range in other.
+         */
+        public void addAll(Selection other) {
+            for (int i = 0; i < other.size; i += 2) {
+                add(other.offsets[i], other.offsets[i + 1]);
+            }
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean sameRanges(Selection other) {
+            if (path == null || !path.equals(other.path) || size != other.size) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (offsets[i] != other.offsets[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ArrayList<ArrayList<Integer>> toRanges() {
+            ArrayList<ArrayList<Integer>> ranges = new ArrayList<ArrayList<Integer>>(size / 2);
+            for (int i = 0; i < size; i += 2) {
+                ArrayList<Integer> range = new ArrayList<Integer>(2);
+                range.add(offsets[i]);
+                range.add(offsets[i + 1]);
+                ranges.add(range);
+            }
+            return ranges;
+        }
+    }
+
+    /**
+     * @param sample fills in the current path and ranges. Leaves the path null if there's nothing to send.
+     */
+    public SelectionPublisher(IContext context, EditorEventHandler editorManager, RunLater<Selection> sample) {
+        this.context = context;
+        this.editorManager = editorManager;
+        this.sample = sample;
+    }
+
+    /**
+     * @param following true if this change shouldn't move the editors of people following us, like a scroll.
+     */
+    public void changed(boolean following) {
+        // Anything the user did since the last send makes it count as a move.
+        pendingFollowing = pending ? pendingFollowing && following : following;
+        pending = true;
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        long wait = maxPerSecond <= 0 ? 0 : lastFlush + 1000 / maxPerSecond - System.currentTimeMillis();
+        if (wait <= 0 || context.setTimeout((int) wait, flushLater) == null) {
+            // Still goes through the event queue, so the rest of this burst of events is included.
+            context.mainThread(flush);
+        }
+    }
+
+    private void flush() {
+        scheduled = false;
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        lastFlush = System.currentTimeMillis();
+        next.clear();
+        sample.run(next);
+        if (next.path == null || next.isEmpty()) {
+            return;
+        }
+        next.following = next.following || pendingFollowing;
+        // The same ranges are only worth sending again if a scroll turned into a move that followers should see.
+        if (next.sameRanges(sent) && (next.following || !sent.following)) {
+            return;
+        }
+        // Only counts as sent if it was, so a highlight dropped before the buffer is ready goes out next time.
+        if (!editorManager.changeSelection(next.path, next.toRanges(), next.following)) {
+            return;
+        }
+        Selection previous = sent;
+        sent = next;
+        next = previous;
+    }
+}
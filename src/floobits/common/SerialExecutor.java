@@ -0,0 +1,133 @@
+package floobits.common;
+
+import floobits.utilities.Flog;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time, in the order they were added, on a shared executor. Nothing blocks: tasks for different
+ * executors run in parallel and tasks for the same one wait in a queue instead of on a lock.
+ *
+ * A task gets a Turn, and the next task doesn't start until the turn is over. The turn can be passed to another
+ * thread, so work that has to happen on the write thread still keeps its place in line.
+ */
+public class SerialExecutor {
+    private static final int PENDING = 0;
+    private static final int WAITING = 1;
+    private static final int DONE = 2;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<RunLater<Turn>> tasks = new ConcurrentLinkedQueue<RunLater<Turn>>();
+    private final AtomicBoolean active = new AtomicBoolean(false);
+    // The thread inside Turn.run right now, if any.
+    private volatile Thread owner;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                RunLater<Turn> task = tasks.poll();
+                if (task == null) {
+                    active.set(false);
+                    // Something may have been added after the poll but before active was cleared.
+                    if (tasks.isEmpty() || !active.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                Turn turn = new Turn();
+                try {
+                    task.run(turn);
+                } catch (Throwable e) {
+                    Flog.error(e);
+                    turn.skip();
+                }
+                if (turn.state.compareAndSet(PENDING, WAITING)) {
+                    // Whoever ends the turn starts draining again.
+                    return;
+                }
+            }
+        }
+    };
+
+    public class Turn {
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /**
+         * Runs body as this executor's task and ends the turn.
+         */
+        public void run(Runnable body) {
+            owner = Thread.currentThread();
+            try {
+                body.run();
+            } finally {
+                owner = null;
+                skip();
+            }
+        }
+
+        /**
+         * Ends the turn without doing anything. Calling it more than once does nothing.
+         */
+        public void skip() {
+            if (state.compareAndSet(PENDING, DONE)) {
+                return;
+            }
+            if (state.compareAndSet(WAITING, DONE)) {
+                executor.execute(drain);
+            }
+        }
+    }
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs runnable after everything added before it. Called from inside a task, it runs right away as part of
+     * that task.
+     */
+    public void execute(final Runnable runnable) {
+        if (owner == Thread.currentThread()) {
+            runnable.run();
+            return;
+        }
+        submit(new RunLater<Turn>() {
+            @Override
+            public void run(Turn turn) {
+                turn.run(runnable);
+            }
+        });
+    }
+
+    /**
+     * Runs runnable right away as a task on this thread, but only if nothing is running or waiting.
+     * @return false, without running it, if the executor was busy.
+     */
+    public boolean tryExecute(Runnable runnable) {
+        if (!tasks.isEmpty() || !active.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            new Turn().run(runnable);
+        } finally {
+            active.set(false);
+            // Something may have been added while runnable had the turn.
+            if (!tasks.isEmpty() && active.compareAndSet(false, true)) {
+                executor.execute(drain);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls task with the next turn. It has to end the turn, on any thread, with Turn.run or Turn.skip.
+     */
+    public void submit(RunLater<Turn> task) {
+        tasks.add(task);
+        if (active.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+}
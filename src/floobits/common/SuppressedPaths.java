@@ -0,0 +1,56 @@
+package floobits.common;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files we're writing to ourselves, so the listener can ignore the events that causes. Each file is counted on its
+ * own, so writing one file never hides a change the user makes in another, and writers never wait for each other.
+ */
+public class SuppressedPaths {
+    private final ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Every call has to be followed by a release of the same path.
+     * @param path absolute path.
+     */
+    public void suppress(String path) {
+        String key = FilenameUtils.separatorsToUnix(path);
+        while (true) {
+            Integer count = counts.get(key);
+            if (count == null) {
+                if (counts.putIfAbsent(key, 1) == null) {
+                    return;
+                }
+            } else if (counts.replace(key, count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    public void release(String path) {
+        String key = FilenameUtils.separatorsToUnix(path);
+        while (true) {
+            Integer count = counts.get(key);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                if (counts.remove(key, count)) {
+                    return;
+                }
+            } else if (counts.replace(key, count, count - 1)) {
+                return;
+            }
+        }
+    }
+
+    public boolean isSuppressed(String path) {
+        return counts.containsKey(FilenameUtils.separatorsToUnix(path));
+    }
+
+    public int size() {
+        return counts.size();
+    }
+}
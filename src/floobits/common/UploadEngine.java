@@ -0,0 +1,250 @@
+package floobits.common;
+
+import floobits.common.interfaces.IContext;
+import floobits.common.interfaces.IFile;
+import floobits.common.protocol.buf.Buf;
+import floobits.utilities.Flog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads new files when sharing a project. Files are read and encoded on a few shared daemon threads. Workers wait
+ * when too many UTF-8 bytes are written but not yet on the socket, and when we're going faster than
+ * maxBytesPerSecond. Files are uploaded in EditorPriority order.
+ */
+public class UploadEngine {
+    public static int maxWorkers = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    public static long maxBytesInFlight = 1024 * 1024 * 8;
+    // 0 means no limit.
+    public static long maxBytesPerSecond = 1024 * 1024 * 4;
+    private static final long PROGRESS_INTERVAL = 500;
+    // Shared by every upload, so nothing is left running when an upload ends or the IDE shuts down.
+    private static ThreadPoolExecutor workers;
+    private final IContext context;
+    private final OutboundRequestHandler outbound;
+
+    static class TokenBucket {
+        private final long rate;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            tokens = rate;
+        }
+
+        /**
+         * Takes bytes out of the bucket, going into debt if there aren't enough.
+         * @return how many nanoseconds to wait before sending them.
+         */
+        synchronized long take(long bytes) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * (double) rate / 1e9);
+            last = now;
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) (-tokens * 1e9 / rate);
+        }
+    }
+
+    private class Upload {
+        final int total;
+        final long started = System.currentTimeMillis();
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong lastProgress = new AtomicLong();
+        final Semaphore budget;
+        final int budgetPermits;
+        final TokenBucket bucket;
+
+        Upload(int total) {
+            this.total = total;
+            budgetPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytesInFlight));
+            budget = new Semaphore(budgetPermits);
+            bucket = maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond) : null;
+        }
+
+        void send(Buf buf) {
+            if (!context.isJoined()) {
+                return;
+            }
+            String contents = buf.serialize();
+            long size = contents == null ? 0 : Utils.utf8Length(contents);
+            // A file bigger than the whole budget waits for everything else to finish instead of forever.
+            final int permits = (int) Math.max(1, Math.min(size, budgetPermits));
+            try {
+                budget.acquire(permits);
+                if (bucket != null) {
+                    long wait = bucket.take(size);
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+            } catch (InterruptedException e) {
+                budget.release(permits);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            boolean written = outbound.createBuf(buf, new Runnable() {
+                @Override
+                public void run() {
+                    budget.release(permits);
+                }
+            });
+            if (!written) {
+                budget.release(permits);
+                return;
+            }
+            sent.incrementAndGet();
+            bytes.addAndGet(size);
+        }
+
+        void done() {
+            int count = finished.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long last = lastProgress.get();
+            if (count < total && (now - last < PROGRESS_INTERVAL || !lastProgress.compareAndSet(last, now))) {
+                return;
+            }
+            long elapsed = Math.max(1, now - started);
+            long bytesPerSecond = bytes.get() * 1000 / elapsed;
+            if (count < total) {
+                context.progressMessage(String.format("Uploading %s/%s files (%s KB/s).", count, total,
+                        bytesPerSecond / 1024));
+                return;
+            }
+            context.progressMessage("");
+            Flog.log("Uploaded %s of %s files (%s bytes) in %sms at %s bytes/s with %s workers.", sent.get(), total,
+                    bytes.get(), elapsed, bytesPerSecond, maxWorkers);
+            context.statusMessage(String.format("Uploaded %s files.", sent.get()));
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getWorkers() {
+        if (workers == null) {
+            int count = Math.max(1, maxWorkers);
+            // First in, first out, so files start uploading in priority order.
+            workers = new ThreadPoolExecutor(count, count, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger threads = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, String.format("Floobits upload %s",
+                                    threads.incrementAndGet()));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    public UploadEngine(IContext context, OutboundRequestHandler outbound) {
+        this.context = context;
+        this.outbound = outbound;
+    }
+
+    /**
+     * Has to be called from the read thread.
+     * @param paths project relative paths of the files to create.
+     */
+    public void upload(Collection<String> paths) {
+        HashSet<String> unsavedPaths = context.iFactory.getUnsavedDocumentPaths();
+        final EditorPriority priorities = new EditorPriority(context);
+        final LinkedList<Buf> unsaved = new LinkedList<Buf>();
+        List<String> toRead = new ArrayList<String>();
+        for (String path : paths) {
+            IFile file = context.iFactory.findFileByPath(context.absPath(path));
+            if (file == null || !file.isValid()) {
+                Flog.warn("path is no longer a valid virtual file");
+                continue;
+            }
+            if (unsavedPaths.contains(file.getPath())) {
+                // Unsaved changes only exist in the document, which we can only read here.
+                Buf buf = Buf.createBuf(file, context, outbound);
+                if (buf != null) {
+                    unsaved.add(buf);
+                }
+                continue;
+            }
+            toRead.add(path);
+        }
+        // Looked up once, since the snapshot can change while we sort. The sort is stable, so files at the same
+        // priority keep their order.
+        final HashMap<String, Integer> byPath = new HashMap<String, Integer>();
+        for (String path : toRead) {
+            byPath.put(path, priorities.get(path));
+        }
+        Collections.sort(toRead, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int x = byPath.get(a);
+                int y = byPath.get(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        final Upload upload = new Upload(unsaved.size() + toRead.size());
+        if (upload.total == 0) {
+            return;
+        }
+        ThreadPoolExecutor pool = getWorkers();
+        // These are already in memory, but sending still has to go through the budget and rate limit.
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Buf buf : unsaved) {
+                    try {
+                        upload.send(buf);
+                    } finally {
+                        upload.done();
+                    }
+                }
+            }
+        });
+        for (final String path : toRead) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!context.isJoined()) {
+                            return;
+                        }
+                        byte[] bytes = Reconciler.readBytes(new File(context.absPath(path)));
+                        if (bytes == null) {
+                            Flog.warn("%s is no longer a file, not uploading it.", path);
+                            return;
+                        }
+                        Buf buf = Buf.createBuf(path, bytes, context, outbound);
+                        if (buf != null) {
+                            upload.send(buf);
+                        }
+                    } catch (Throwable e) {
+                        Flog.warn("Couldn't upload %s: %s", path, e);
+                    } finally {
+                        upload.done();
+                    }
+                }
+            });
+        }
+    }
+}
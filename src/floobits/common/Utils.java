@@ -300,4 +300,53 @@ public class Utils {
         return BrowserOpener.getInstance().openInBrowser(uri, defaultLinkText, context);
     }
 
+    /**
+     * Turns \r\n and lone \r into \n in a single pass. Most files have no carriage returns at all, so this hands
+     * back the same instance instead of copying when there is nothing to replace.
+     */
+    static public String normalizeNewLines(String text) {
+        int cr = text.indexOf('\r');
+        if (cr < 0) {
+            return text;
+        }
+        int length = text.length();
+        StringBuilder normalized = new StringBuilder(length);
+        int start = 0;
+        while (cr >= 0) {
+            normalized.append(text, start, cr).append('\n');
+            start = cr + 1;
+            if (start < length && text.charAt(start) == '\n') {
+                start++;
+            }
+            cr = text.indexOf('\r', start);
+        }
+        normalized.append(text, start, length);
+        return normalized.toString();
+    }
+
+    /**
+     * @return how many bytes text takes up in UTF-8, without encoding it.
+     */
+    static public long utf8Length(String text) {
+        long length = 0;
+        int chars = text.length();
+        for (int i = 0; i < chars; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // Half a pair can't be encoded, and goes out as '?'.
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
 }
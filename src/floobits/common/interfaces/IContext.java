@@ -21,6 +21,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class IContext {
     public final EditorScheduler editor;
+    // Files we're writing to, so the listener doesn't send our own changes back.
+    public final SuppressedPaths suppressed = new SuppressedPaths();
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     public String colabDir;
     public volatile BaseHandler handler;
@@ -81,16 +83,37 @@ public abstract class IContext {
         return true;
     }
 
-    public void shareProject(final boolean _private_, String projectPath) {
-
+    /**
+     * Reshares the workspace projectPath was last shared as, or asks where to create a new one. API requests are
+     * made on the IOExecutor.
+     */
+    public void shareProject(final boolean _private_, final String projectPath) {
+        final String[] newPerms = _private_ ? new String[]{} : new String[]{"view_room"};
+        IOExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (shareExisting(projectPath, newPerms)) {
+                    return;
+                }
+                mainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        shareNew(_private_, projectPath);
+                    }
+                });
+            }
+        });
+    }
 
+    /**
+     * @return true if projectPath was already shared and we're joining that workspace.
+     */
+    private boolean shareExisting(String projectPath, String[] newPerms) {
         FlooUrl flooUrl = DotFloo.read(projectPath);
 
-        String[] newPerms = _private_ ? new String[]{} : new String[]{"view_room"};
-
         if (flooUrl != null && changePerms(flooUrl, newPerms)) {
-            joinWorkspace(flooUrl, projectPath, true, null);
-            return;
+            joinLater(flooUrl, projectPath);
+            return true;
         }
 
         PersistentJson persistentJson = PersistentJson.getInstance();
@@ -106,14 +129,26 @@ public abstract class IContext {
                         continue;
                     }
                     if (changePerms(flooUrl, newPerms)) {
-                        joinWorkspace(flooUrl, w.path, true, null);
-                        return;
+                        joinLater(flooUrl, w.path);
+                        return true;
                     }
                 }
             }
         }
+        return false;
+    }
+
+    private void joinLater(final FlooUrl flooUrl, final String path) {
+        mainThread(new Runnable() {
+            @Override
+            public void run() {
+                joinWorkspace(flooUrl, path, true, null);
+            }
+        });
+    }
 
-        String host;
+    private void shareNew(final boolean _private_, final String projectPath) {
+        final String host;
         FloorcJson floorcJson;
         try {
             floorcJson = Settings.get();
@@ -140,15 +175,50 @@ public abstract class IContext {
             return;
         }
 
-        String owner = floorcJson.auth.get(host).get("username");
+        final String owner = floorcJson.auth.get(host).get("username");
         final String name = new File(projectPath).getName();
-        List<String> orgs = API.getOrgsCanAdmin(host, this);
-        orgs.add(0, owner);
-        shareProjectDialog(name, orgs, host, _private_, projectPath);
+        IOExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> orgs = API.getOrgsCanAdmin(host, IContext.this);
+                orgs.add(0, owner);
+                mainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        shareProjectDialog(name, orgs, host, _private_, projectPath);
+                    }
+                });
+            }
+        });
     }
 
     protected abstract void shareProjectDialog(String name, List<String> orgs, String host, boolean _private_, String projectPath);
 
+    /**
+     * Creates the workspace on the IOExecutor and joins it if that worked.
+     */
+    public void createWorkspaceAndJoin(final String host, final String owner, final String workspace,
+                                       final boolean _private_, final String path, final IFile dirToAdd) {
+        IOExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!API.createWorkspace(host, owner, workspace, IContext.this, _private_)) {
+                    return;
+                }
+                final FlooUrl url = new FlooUrl(host, owner, workspace, Constants.defaultPort, true);
+                mainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        joinWorkspace(url, path, true, dirToAdd);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Checks that the workspace exists on the IOExecutor, then joins it from the main thread.
+     */
     public void joinWorkspace(final FlooUrl flooUrl, final String path, final boolean upload, final IFile dirToAdd) {
         FloorcJson floorcJson = null;
         try {
@@ -157,7 +227,7 @@ public abstract class IContext {
             statusMessage("Invalid JSON in your .floorc.json.");
         }
 
-        HashMap<String, String> auth = floorcJson != null ? floorcJson.auth.get(flooUrl.host) : null;
+        final HashMap<String, String> auth = floorcJson != null ? floorcJson.auth.get(flooUrl.host) : null;
         if (auth == null) {
             setupHandler(new LinkEditorHandler(this, flooUrl.host, new Runnable() {
                 @Override
@@ -168,10 +238,26 @@ public abstract class IContext {
             return;
         }
 
-        if (!API.workspaceExists(flooUrl, this)) {
-            errorMessage(String.format("The workspace %s does not exist!", flooUrl.toString()));
-            return;
-        }
+        IOExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean exists = API.workspaceExists(flooUrl, IContext.this);
+                mainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!exists) {
+                            errorMessage(String.format("The workspace %s does not exist!", flooUrl.toString()));
+                            return;
+                        }
+                        join(flooUrl, path, upload, dirToAdd, auth);
+                    }
+                });
+            }
+        });
+    }
+
+    private void join(final FlooUrl flooUrl, final String path, final boolean upload, final IFile dirToAdd,
+                      HashMap<String, String> auth) {
         if (iFactory.findFileByIoFile(new File(path)) == null) {
             errorMessage(String.format("The specified path %s is not valid!", path));
             return;
@@ -242,10 +328,18 @@ public abstract class IContext {
     }
 
     public void refreshIgnores() {
+        logIgnoreCache();
         IFile fileByIoFile = iFactory.findFileByIoFile(new File(colabDir));
         ignoreTree = Ignore.BuildIgnore(fileByIoFile);
     }
 
+    private void logIgnoreCache() {
+        Ignore tree = ignoreTree;
+        if (tree != null) {
+            Flog.log("Ignore cache: %s", tree.getCache());
+        }
+    }
+
     public String absPath(String path) {
         return Utils.absPath(colabDir, path);
     }
@@ -291,6 +385,7 @@ public abstract class IContext {
                     loopGroup = null;
                 }
             }
+            logIgnoreCache();
             ignoreTree = null;
         } finally {
             lock.writeLock().unlock();
@@ -306,6 +401,10 @@ public abstract class IContext {
     public abstract void flashMessage(String message);
     public abstract void warnMessage(String message);
     public abstract void statusMessage(String message);
+    /**
+     * Shows message in the status bar without notifying or adding it to chat. An empty message clears it.
+     */
+    public abstract void progressMessage(String message);
     public abstract void errorMessage(String message);
     public abstract boolean confirmDialog(String message);
     public abstract void chatStatusMessage(String message);
@@ -319,12 +418,23 @@ public abstract class IContext {
     public abstract void setListener(boolean b);
     public abstract void setSaving(boolean b);
     public abstract void mainThread(final Runnable runnable);
-    public abstract void readThread(final Runnable runnable);
-    public abstract void writeThread(final Runnable runnable);
+    /**
+     * @param event what the work is recorded as in editor.stats.
+     */
+    public abstract void readThread(String event, final Runnable runnable);
+    public abstract void writeThread(String event, final Runnable runnable);
+
+    public void readThread(final Runnable runnable) {
+        readThread("other", runnable);
+    }
+
+    public void writeThread(final Runnable runnable) {
+        writeThread("other", runnable);
+    }
     public abstract void dialog(String title, String body, RunLater<Boolean> runLater);
     public abstract void dialogDisconnect(int tooMuch, int howMany);
     public abstract void dialogPermsRequest(String username, RunLater<String> perms);
-    public abstract boolean dialogTooBig(HashMap<String, Integer> bigStuff);
+    public abstract boolean dialogTooBig(HashMap<String, Long> bigStuff);
     public abstract void dialogResolveConflicts(Runnable stompLocal, Runnable stompRemote, boolean readOnly,
                                                 Runnable flee, String[] conflictedPathsArray,
                                                 String [] connections);
@@ -1,6 +1,7 @@
 package floobits.common.interfaces;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.HashSet;
 
 public interface IFactory {
@@ -14,6 +15,13 @@ public interface IFactory {
     void removeHighlightsForUser(int userID);
     void removeHighlight(Integer userId, final String path);
     boolean openFile(File file);
+    boolean isFileOpen(IFile file);
+    HashSet<String> getUnsavedDocumentPaths();
+    /**
+     * @return EditorPriority levels for selected and open files, and files with unsaved changes, keyed by absolute
+     * path. Safe to call from any thread.
+     */
+    HashMap<String, Integer> getEditorPriorities();
     void clearHighlights();
     void clearReadOnlyState();
     void goToLastHighlight();
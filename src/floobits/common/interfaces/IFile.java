@@ -16,6 +16,10 @@ public abstract class IFile {
     public abstract boolean isSymLink();
     public abstract boolean isValid();
     public abstract byte[] getBytes();
+    /**
+     * Decodes bytes read from this file the way its document would, with the file's charset and without a BOM.
+     */
+    public abstract String decode(byte[] bytes);
     public abstract boolean setBytes(byte[] bytes);
     public abstract void refresh();
     public abstract boolean createDirectories(String dir);
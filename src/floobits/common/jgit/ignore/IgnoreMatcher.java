@@ -0,0 +1,308 @@
+package floobits.common.jgit.ignore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A node's rules compiled into one matcher. Literal names and "*.ext" globs are hash lookups, literal paths are a
+ * trie of path segments, and the remaining globs are one regular expression per kind of rule. The path is split
+ * once per lookup instead of once per rule.
+ *
+ * Gives the same answer as trying each {@link IgnoreRule#isMatch(String, boolean)} from the last rule to the
+ * first. Rules that can't be compiled, and paths that aren't in the usual "a/b/c" form, are checked that way.
+ *
+ * Immutable once built, and lookups only use state local to the call, so one matcher can be shared by any number
+ * of threads.
+ */
+final class IgnoreMatcher {
+	/** The highest rule index for a key, counting all rules or only the ones that aren't directory only. */
+	private static final class Best {
+		int any = -1;
+		int file = -1;
+
+		void add(int index, boolean dirOnly) {
+			any = Math.max(any, index);
+			if (!dirOnly)
+				file = Math.max(file, index);
+		}
+
+		int get(boolean last, boolean isDirectory) {
+			return !last || isDirectory ? any : file;
+		}
+	}
+
+	private static final class TrieNode {
+		final HashMap<String, TrieNode> children = new HashMap<String, TrieNode>();
+		final Best best = new Best();
+	}
+
+	/** Alternatives are ordered by descending rule index, so the first group that matches is the last rule. */
+	private static final class Combined {
+		final Pattern pattern;
+		final int[] indexes;
+
+		Combined(List<Integer> indexes, List<String> regexes) {
+			StringBuilder sb = new StringBuilder();
+			this.indexes = new int[indexes.size()];
+			for (int i = indexes.size() - 1, group = 0; i >= 0; i--, group++) {
+				if (sb.length() > 0)
+					sb.append('|');
+				sb.append('(').append(regexes.get(i)).append(')');
+				this.indexes[group] = indexes.get(i);
+			}
+			pattern = Pattern.compile(sb.toString());
+		}
+
+		int match(Matcher matcher, int start, int end) {
+			matcher.region(start, end);
+			if (!matcher.matches())
+				return -1;
+			for (int group = 1; group <= indexes.length; group++) {
+				if (matcher.start(group) >= 0)
+					return indexes[group - 1];
+			}
+			return -1;
+		}
+	}
+
+	private final List<IgnoreRule> rules;
+	private final HashMap<String, Best> names = new HashMap<String, Best>();
+	private final HashMap<String, Best> extensions = new HashMap<String, Best>();
+	private final TrieNode paths = new TrieNode();
+	private final Combined nameGlobs;
+	private final Combined nameGlobsForFiles;
+	private final Combined pathGlobs;
+	// Every path starts with an empty segment, so name globs like "*" match everything.
+	private final int emptyName;
+	private final int[] fallback;
+
+	/**
+	 * @param rules
+	 *            must not change after this.
+	 */
+	IgnoreMatcher(List<IgnoreRule> rules) {
+		this.rules = rules;
+		List<Integer> nameIndexes = new ArrayList<Integer>();
+		List<String> nameRegexes = new ArrayList<String>();
+		List<Integer> fileIndexes = new ArrayList<Integer>();
+		List<String> fileRegexes = new ArrayList<String>();
+		List<Integer> pathIndexes = new ArrayList<Integer>();
+		List<String> pathRegexes = new ArrayList<String>();
+		List<Integer> legacy = new ArrayList<Integer>();
+		int empty = -1;
+		for (int i = 0; i < rules.size(); i++) {
+			IgnoreRule rule = rules.get(i);
+			String pattern = rule.getPattern();
+			boolean dirOnly = rule.dirOnly();
+			if (rule.getNameOnly() && !rule.isGlob()) {
+				if (pattern.length() == 0) {
+					legacy.add(i);
+					continue;
+				}
+				best(names, pattern).add(i, dirOnly);
+				continue;
+			}
+			if (!rule.isGlob()) {
+				String[] segments = pattern.substring(1).split("/", -1); //$NON-NLS-1$
+				TrieNode node = paths;
+				for (String segment : segments) {
+					if (segment.length() == 0) {
+						node = null;
+						break;
+					}
+					TrieNode child = node.children.get(segment);
+					if (child == null) {
+						child = new TrieNode();
+						node.children.put(segment, child);
+					}
+					node = child;
+				}
+				if (node == null)
+					legacy.add(i);
+				else
+					node.best.add(i, dirOnly);
+				continue;
+			}
+			String extension = extension(pattern);
+			if (rule.getNameOnly() && extension != null) {
+				best(extensions, extension).add(i, dirOnly);
+				continue;
+			}
+			String regex = toRegex(pattern);
+			if (regex == null) {
+				legacy.add(i);
+				continue;
+			}
+			if (!rule.getNameOnly()) {
+				pathIndexes.add(i);
+				pathRegexes.add(regex);
+				continue;
+			}
+			nameIndexes.add(i);
+			nameRegexes.add(regex);
+			if (!dirOnly) {
+				fileIndexes.add(i);
+				fileRegexes.add(regex);
+			}
+			if (Pattern.matches(regex, "")) //$NON-NLS-1$
+				empty = i;
+		}
+		nameGlobs = nameIndexes.isEmpty() ? null : new Combined(nameIndexes, nameRegexes);
+		nameGlobsForFiles = fileIndexes.isEmpty() ? null : new Combined(fileIndexes, fileRegexes);
+		pathGlobs = pathIndexes.isEmpty() ? null : new Combined(pathIndexes, pathRegexes);
+		emptyName = empty;
+		fallback = new int[legacy.size()];
+		for (int i = 0; i < fallback.length; i++)
+			fallback[i] = legacy.get(legacy.size() - 1 - i);
+	}
+
+	IgnoreRule getRule(int index) {
+		return rules.get(index);
+	}
+
+	/**
+	 * @return the index of the last rule matching entryPath, or -1.
+	 */
+	int match(String entryPath, boolean isDirectory) {
+		if (rules.isEmpty())
+			return -1;
+		String target = entryPath.startsWith("/") ? entryPath : "/" + entryPath; //$NON-NLS-1$ //$NON-NLS-2$
+		if (target.length() < 2 || target.endsWith("/") || target.contains("//")) //$NON-NLS-1$ //$NON-NLS-2$
+			return matchLegacy(rules.size() - 1, -1, target, isDirectory);
+
+		Matcher nameMatcher = nameGlobs == null ? null : nameGlobs.pattern.matcher(target);
+		Matcher fileMatcher = nameGlobsForFiles == null ? null : nameGlobsForFiles.pattern.matcher(target);
+		Matcher pathMatcher = pathGlobs == null ? null : pathGlobs.pattern.matcher(target);
+		int best = emptyName;
+		TrieNode node = paths;
+		int start = 1;
+		while (start <= target.length()) {
+			int end = target.indexOf('/', start);
+			if (end < 0)
+				end = target.length();
+			boolean last = end == target.length();
+			String name = target.substring(start, end);
+
+			Best b = names.get(name);
+			if (b != null)
+				best = Math.max(best, b.get(last, isDirectory));
+			int dot = name.lastIndexOf('.');
+			if (dot >= 0 && !extensions.isEmpty()) {
+				b = extensions.get(name.substring(dot));
+				if (b != null)
+					best = Math.max(best, b.get(last, isDirectory));
+			}
+			if (node != null) {
+				node = node.children.get(name);
+				if (node != null)
+					best = Math.max(best, node.best.get(last, isDirectory));
+			}
+			if (last && !isDirectory) {
+				if (fileMatcher != null)
+					best = Math.max(best, nameGlobsForFiles.match(fileMatcher, start, end));
+			} else if (nameMatcher != null) {
+				best = Math.max(best, nameGlobs.match(nameMatcher, start, end));
+			}
+			if (pathMatcher != null)
+				best = Math.max(best, pathGlobs.match(pathMatcher, 0, end));
+			start = end + 1;
+		}
+		for (int index : fallback) {
+			if (index <= best)
+				break;
+			if (rules.get(index).isMatch(target, isDirectory))
+				return index;
+		}
+		return best;
+	}
+
+	private int matchLegacy(int from, int to, String target, boolean isDirectory) {
+		for (int i = from; i > to; i--) {
+			if (rules.get(i).isMatch(target, isDirectory))
+				return i;
+		}
+		return -1;
+	}
+
+	private static Best best(HashMap<String, Best> map, String key) {
+		Best best = map.get(key);
+		if (best == null) {
+			best = new Best();
+			map.put(key, best);
+		}
+		return best;
+	}
+
+	/**
+	 * @return ".ext" if pattern is "*.ext" with nothing special in ext, otherwise null.
+	 */
+	private static String extension(String pattern) {
+		if (pattern.length() < 3 || pattern.charAt(0) != '*' || pattern.charAt(1) != '.')
+			return null;
+		String extension = pattern.substring(1);
+		for (int i = 1; i < extension.length(); i++) {
+			char c = extension.charAt(i);
+			if (c == '.' || c == '*' || c == '?' || c == '[' || c == '\\')
+				return null;
+		}
+		return extension;
+	}
+
+	/**
+	 * Translates a glob the way FileNameMatcher reads it, with '/' as the character wildcards can't match.
+	 *
+	 * @return null for patterns with character classes, ranges or negated groups.
+	 */
+	static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		boolean escaped = false;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (escaped) {
+				appendLiteral(regex, c);
+				escaped = false;
+				continue;
+			}
+			switch (c) {
+			case '*':
+				regex.append("[^/]*"); //$NON-NLS-1$
+				break;
+			case '?':
+				regex.append("[^/]"); //$NON-NLS-1$
+				break;
+			case '\\':
+				escaped = true;
+				break;
+			case '[':
+				// The first character of a group can be a ']'.
+				int end = glob.indexOf(']', i + 2);
+				if (end < 0)
+					return null;
+				String group = glob.substring(i + 1, end);
+				if (group.startsWith("!") || group.indexOf('-') >= 0 || group.indexOf('[') >= 0 //$NON-NLS-1$
+						|| group.indexOf(']') >= 0 || group.indexOf('\\') >= 0)
+					return null;
+				regex.append('[');
+				for (int j = 0; j < group.length(); j++)
+					appendLiteral(regex, group.charAt(j));
+				regex.append(']');
+				i = end;
+				break;
+			default:
+				appendLiteral(regex, c);
+			}
+		}
+		return regex.toString();
+	}
+
+	private static void appendLiteral(StringBuilder regex, char c) {
+		if (Character.isLetterOrDigit(c) && c < 128) {
+			regex.append(c);
+			return;
+		}
+		regex.append(String.format("\\u%04x", (int) c)); //$NON-NLS-1$
+	}
+}
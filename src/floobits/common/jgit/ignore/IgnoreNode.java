@@ -56,7 +56,8 @@ import java.util.List;
 /**
  * Represents a bundle of ignore rules inherited from a base directory.
  *
- * This class is not thread safe, it maintains state about the last match.
+ * Lookups don't change any state, so a node can be checked from many threads
+ * at once. Adding rules while other threads check paths is also safe.
  */
 public class IgnoreNode {
 	/** Result from {@link IgnoreNode#isIgnored(String, boolean)}. */
@@ -74,6 +75,9 @@ public class IgnoreNode {
 	/** The rules that have been parsed into this node. */
 	private final List<IgnoreRule> rules;
 
+	/** The rules compiled for lookups. Built on the first lookup after the rules change. */
+	private volatile IgnoreMatcher matcher;
+
 	/** Create an empty ignore node with no rules. */
 	public IgnoreNode() {
 		rules = new ArrayList<IgnoreRule>();
@@ -88,8 +92,9 @@ public class IgnoreNode {
 	public IgnoreNode(List<IgnoreRule> rules) {
 		this.rules = rules;
 	}
-    public void addRule(IgnoreRule rule) {
+    public synchronized void addRule(IgnoreRule rule) {
         rules.add(rule);
+        matcher = null;
     }
 	/**
 	 * Parse files according to gitignore standards.
@@ -102,11 +107,27 @@ public class IgnoreNode {
 	 */
 	public void parse(InputStream in) throws IOException {
 		BufferedReader br = asReader(in);
+		List<IgnoreRule> parsed = new ArrayList<IgnoreRule>();
 		String txt;
 		while ((txt = br.readLine()) != null) {
 			txt = txt.trim();
 			if (txt.length() > 0 && !txt.startsWith("#") && !txt.equals("/")) //$NON-NLS-1$ //$NON-NLS-2$
-				rules.add(new IgnoreRule(txt));
+				parsed.add(new IgnoreRule(txt));
+		}
+		synchronized (this) {
+			rules.addAll(parsed);
+			matcher = null;
+		}
+	}
+
+	private IgnoreMatcher compiled() {
+		IgnoreMatcher compiled = matcher;
+		if (compiled != null)
+			return compiled;
+		synchronized (this) {
+			if (matcher == null)
+				matcher = new IgnoreMatcher(new ArrayList<IgnoreRule>(rules));
+			return matcher;
 		}
 	}
 
@@ -116,8 +137,8 @@ public class IgnoreNode {
 	}
 
 	/** @return list of all ignore rules held by this node. */
-	public List<IgnoreRule> getRules() {
-		return Collections.unmodifiableList(rules);
+	public synchronized List<IgnoreRule> getRules() {
+		return Collections.unmodifiableList(new ArrayList<IgnoreRule>(rules));
 	}
 
 	/**
@@ -132,19 +153,14 @@ public class IgnoreNode {
 	 * @return status of the path.
 	 */
 	public MatchResult isIgnored(String entryPath, boolean isDirectory) {
-		if (rules.isEmpty())
+		IgnoreMatcher compiled = compiled();
+		// The last rule that matches wins
+		int index = compiled.match(entryPath, isDirectory);
+		if (index < 0)
 			return MatchResult.CHECK_PARENT;
-
-		// Parse rules in the reverse order that they were read
-		for (int i = rules.size() - 1; i > -1; i--) {
-			IgnoreRule rule = rules.get(i);
-			if (rule.isMatch(entryPath, isDirectory)) {
-				if (rule.getResult())
-					return MatchResult.IGNORED;
-				else
-					return MatchResult.NOT_IGNORED;
-			}
-		}
-		return MatchResult.CHECK_PARENT;
+		if (compiled.getRule(index).getResult())
+			return MatchResult.IGNORED;
+		else
+			return MatchResult.NOT_IGNORED;
 	}
 }
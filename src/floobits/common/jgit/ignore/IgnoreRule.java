@@ -56,6 +56,7 @@ public class IgnoreRule {
 	private boolean negation;
 	private boolean nameOnly;
 	private boolean dirOnly;
+	/** Never used directly, every match works on a copy so rules can be shared between threads. */
 	private FileNameMatcher matcher;
 
 	/**
@@ -147,6 +148,14 @@ public class IgnoreRule {
 		return pattern;
 	}
 
+	/**
+	 * @return
+	 * 			  True if the pattern has wildcards and is matched with a FileNameMatcher
+	 */
+	boolean isGlob() {
+		return matcher != null;
+	}
+
 	/**
 	 * Returns true if a match was made.
 	 * <br>
@@ -193,7 +202,7 @@ public class IgnoreRule {
 			}
 
 		} else {
-			matcher.reset();
+			final FileNameMatcher matcher = new FileNameMatcher(this.matcher);
 			matcher.append(target);
 			if (matcher.isMatch())
 				return true;
@@ -73,17 +73,35 @@ public class Connection extends SimpleChannelInboundHandler<String> {
     }
 
     public void write(Serializable obj) {
+        write(obj, null);
+    }
+
+    /**
+     * @param onWritten called once the data has been written to the socket or the write failed.
+     * @return false if nothing was written, in which case onWritten won't be called.
+     */
+    public boolean write(Serializable obj, final Runnable onWritten) {
         // TODO: threading issue. lock channel
         if (channel == null) {
             Flog.error("not writing because no channel");
-            return;
+            return false;
         }
         String data = new Gson().toJson(obj);
-        if (channel == null) {
+        Channel c = channel;
+        if (c == null) {
             Flog.error("Lost connection? Not writing because no channel. Also, race condition!");
-            return;
+            return false;
+        }
+        ChannelFuture future = c.writeAndFlush(data + "\n");
+        if (onWritten != null) {
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture channelFuture) throws Exception {
+                    onWritten.run();
+                }
+            });
         }
-        channel.writeAndFlush(data + "\n");
+        return true;
     }
 
     protected void _connect(String host, int port) {
@@ -185,6 +203,12 @@ public class Connection extends SimpleChannelInboundHandler<String> {
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
+        if (msg.length() >= RoomInfoReader.streamingThreshold && "room_info".equals(RoomInfoReader.peekName(msg))) {
+            retries = MAX_RETRIES;
+            delay = INITIAL_RECONNECT_DELAY;
+            handler.on_room_info(msg);
+            return;
+        }
         JsonObject obj = (JsonObject)new JsonParser().parse(msg);
         JsonElement name = obj.get("name");
         if (name == null) {
@@ -0,0 +1,73 @@
+package floobits.common.protocol;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import floobits.common.RunLater;
+import floobits.common.protocol.json.receive.RoomInfoBuf;
+import floobits.common.protocol.json.send.RoomInfoResponse;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+
+/**
+ * Parses room_info without building a tree of every buffer first. Each buffer is handed off as soon as it's read, so
+ * we can start reading local files while the rest of the message is still being parsed.
+ */
+public class RoomInfoReader {
+    // Smaller messages aren't worth scanning twice.
+    public static int streamingThreshold = 256 * 1024;
+
+    /**
+     * @return the value of the top level name field, or null if there isn't one.
+     */
+    public static String peekName(String msg) {
+        JsonReader reader = new JsonReader(new StringReader(msg));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("name") && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return everything but the buffers, which only go to onBuf.
+     */
+    public static RoomInfoResponse read(String msg, RunLater<RoomInfoBuf> onBuf) throws IOException {
+        Gson gson = new Gson();
+        JsonParser parser = new JsonParser();
+        JsonReader reader = new JsonReader(new StringReader(msg));
+        JsonObject rest = new JsonObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!name.equals("bufs") || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                rest.add(name, parser.parse(reader));
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                // The key is the buffer id, which is in the buffer too.
+                reader.nextName();
+                RoomInfoBuf b = gson.fromJson(reader, (Type) RoomInfoBuf.class);
+                onBuf.run(b);
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return gson.fromJson(rest, (Type) RoomInfoResponse.class);
+    }
+}
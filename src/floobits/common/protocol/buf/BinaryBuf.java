@@ -19,7 +19,7 @@ public class BinaryBuf extends Buf <byte[]> {
         this.encoding = Encoding.BASE64;
     }
 
-    synchronized public void read () {
+    public void read () {
         IFile virtualFile = getVirtualFile();
         if (virtualFile == null) {
             Flog.warn("Couldn't get virtual file in readFromDisk %s", this);
@@ -31,15 +31,43 @@ public class BinaryBuf extends Buf <byte[]> {
             Flog.warn("Could not get byte array contents for file %s", this);
             return;
         }
+        read(bytes);
+    }
+
+    public void read(byte[] bytes) {
+        synchronized (this) {
+            buf = bytes;
+            md5 = DigestUtils.md5Hex(bytes);
+            evicted = false;
+            version++;
+        }
+        touch();
+    }
+
+    protected boolean rehydrate() {
+        IFile virtualFile = getVirtualFile();
+        if (virtualFile == null) {
+            return false;
+        }
+        byte[] bytes = virtualFile.getBytes();
+        if (bytes == null || !DigestUtils.md5Hex(bytes).equals(md5)) {
+            return false;
+        }
         buf = bytes;
-        md5 = DigestUtils.md5Hex(bytes);
+        return true;
+    }
+
+    long contentSize() {
+        byte[] bytes = buf;
+        return bytes == null ? 0 : bytes.length;
     }
 
     public void write() {
-        context.writeThread(new Runnable() {
+        context.writeThread("binary write", new Runnable() {
             @Override
             public void run() {
-                if (!isPopulated()) {
+                final byte[] bytes = buf;
+                if (id == null || bytes == null) {
                     Flog.warn("Unable to write %s because it's not populated yet.", path);
                     return;
                 }
@@ -52,28 +80,31 @@ public class BinaryBuf extends Buf <byte[]> {
                 if (flooHandler == null) {
                     return;
                 }
-                synchronized (context) {
-                    try {
-                        context.setListener(false);
-                        if (!virtualFile.setBytes(buf)) {
-                            Flog.warn("Writing binary content to disk failed. %s", path);
-                        }
-                    } finally {
-                        context.setListener(true);
+                String absPath = virtualFile.getPath();
+                context.suppressed.suppress(absPath);
+                try {
+                    if (!virtualFile.setBytes(bytes)) {
+                        Flog.warn("Writing binary content to disk failed. %s", path);
                     }
+                } finally {
+                    context.suppressed.release(absPath);
                 }
             }
         });
     }
 
-    synchronized public void set (String s, String md5) {
-        buf = s == null ? new byte[]{} : Base64.decodeBase64(s.getBytes(Charset.forName("UTF-8")));
-        this.md5 = md5;
+    public void set (String s, String md5) {
+        set(s == null ? new byte[]{} : Base64.decodeBase64(s.getBytes(Charset.forName("UTF-8"))), md5);
     }
 
-    synchronized public void set (byte[] s, String md5) {
-        buf = s;
-        this.md5 = md5;
+    public void set (byte[] s, String md5) {
+        synchronized (this) {
+            buf = s;
+            this.md5 = md5;
+            evicted = false;
+            version++;
+        }
+        touch();
     }
 
     public String serialize() {
@@ -2,6 +2,8 @@ package floobits.common.protocol.buf;
 
 import floobits.common.Encoding;
 import floobits.common.OutboundRequestHandler;
+import floobits.common.SerialExecutor;
+import floobits.common.Utils;
 import floobits.common.interfaces.IContext;
 import floobits.common.interfaces.IDoc;
 import floobits.common.interfaces.IFile;
@@ -11,18 +13,54 @@ import io.fletty.util.concurrent.ScheduledFuture;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Buf <T> {
+    public static int maxInFlight = 8;
+    // Runs every buffer's serial executor. Tasks are short, so a few threads go a long way.
+    private static final ExecutorService protocolThreads = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4)), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, String.format("Floobits buf %s", count.incrementAndGet()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
     public String path;
     public Integer id;
     public volatile String md5;
     public volatile T buf;
     public Encoding encoding;
     public ScheduledFuture timeout;
+    // Set while timeout is checking that a patch we rebased over our pending ones came out like the server's copy.
+    protected volatile boolean verifyingRebase = false;
     public boolean forced_patch = false;
+    // Set when the shadow store dropped our contents. We still know the md5 and can read them back.
+    protected volatile boolean evicted = false;
+    ShadowStore store;
+    // Bumped every time our contents change.
+    protected long version = 0;
+    // Patches the server hasn't acked yet, oldest first.
+    private final LinkedList<PendingPatch> pending = new LinkedList<PendingPatch>();
+    // Set when a local change was held back because too many patches were in flight.
+    protected boolean deferred = false;
     protected final IContext context;
     protected OutboundRequestHandler outbound;
+    /**
+     * Orders everything that changes our protocol state, like local changes, remote patches and get_buf, so none
+     * of it needs a lock on the buffer. Work that touches the document takes its turn on the write thread.
+     */
+    public final SerialExecutor serial = new SerialExecutor(protocolThreads);
 
     public Buf(String path, Integer id, T buf, String md5, IContext context, OutboundRequestHandler outbound) {
         this.id = id;
@@ -39,13 +77,218 @@ public abstract class Buf <T> {
             timeout.cancel(false);
             timeout = null;
         }
+        verifyingRebase = false;
     }
     public static boolean isBad(Buf b) {
         return (b == null || !b.isPopulated());
     }
 
     public Boolean isPopulated() {
-        return this.id != null && this.buf != null;
+        return this.id != null && (this.buf != null || evicted);
+    }
+
+    /**
+     * Makes sure our contents are in memory, reading them back from disk if the shadow store evicted them.
+     * @return false if the contents aren't available and have to be fetched with get_buf.
+     */
+    public boolean ensureContents() {
+        boolean rehydrated;
+        synchronized (this) {
+            if (buf != null) {
+                if (store != null) {
+                    store.hit();
+                }
+                return true;
+            }
+            if (!evicted) {
+                return false;
+            }
+            if (store != null) {
+                store.miss();
+            }
+            evicted = false;
+            rehydrated = rehydrate();
+        }
+        if (!rehydrated) {
+            Flog.info("Contents of %s changed on disk since they were evicted.", path);
+            return false;
+        }
+        touch();
+        return true;
+    }
+
+    static class PendingPatch {
+        final int req_id;
+        final String md5_before;
+        final String md5_after;
+        final long version;
+
+        PendingPatch(FlooPatch patch, long version) {
+            this.req_id = patch.req_id;
+            this.md5_before = patch.md5_before;
+            this.md5_after = patch.md5_after;
+            this.version = version;
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized void patchSent(FlooPatch patch) {
+        pending.add(new PendingPatch(patch, version));
+    }
+
+    /**
+     * The server acks requests in order, so this also drops anything sent before reqId.
+     * @return true if a local change was held back and can be sent now.
+     */
+    public synchronized boolean acked(int reqId) {
+        boolean found = false;
+        for (PendingPatch p : pending) {
+            if (p.req_id == reqId) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return false;
+        }
+        Iterator<PendingPatch> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            PendingPatch p = iterator.next();
+            iterator.remove();
+            if (p.req_id == reqId) {
+                Flog.debug("Server acked version %s of %s", p.version, path);
+                if (verifyingRebase && pending.isEmpty() && p.md5_after.equals(md5)) {
+                    // The server has everything we sent and nothing came in since, so we agree.
+                    cancelTimeout();
+                }
+                break;
+            }
+        }
+        if (!deferred || pending.size() >= maxInFlight) {
+            return false;
+        }
+        deferred = false;
+        return true;
+    }
+
+    /**
+     * Forgets the patch with reqId and every one sent after it, since they were made on top of it.
+     */
+    public synchronized void patchFailed(int reqId) {
+        boolean found = false;
+        Iterator<PendingPatch> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().req_id == reqId) {
+                found = true;
+            }
+            if (found) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if the patch with reqId was sent and not acked yet.
+     */
+    public synchronized boolean isPatchPending(int reqId) {
+        for (PendingPatch p : pending) {
+            if (p.req_id == reqId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int patchesInFlight() {
+        return pending.size();
+    }
+
+    /**
+     * @return true if md5 is a state one of our unacked patches started from or produced.
+     */
+    public synchronized boolean isPendingState(String md5) {
+        for (PendingPatch p : pending) {
+            if (p.md5_before.equals(md5) || p.md5_after.equals(md5)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Holds back a local change if too many patches are in flight. It's sent from sendDeferred once acks come in.
+     * @return true if the change was held back.
+     */
+    protected synchronized boolean deferIfWindowFull() {
+        if (pending.size() < maxInFlight) {
+            return false;
+        }
+        deferred = true;
+        return true;
+    }
+
+    public synchronized void clearPending() {
+        pending.clear();
+        deferred = false;
+    }
+
+    /**
+     * Called from the read thread when the local copy changed. Sends the change from our serial executor.
+     */
+    public void changed(final IFile file) {
+        serial.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isBad(Buf.this)) {
+                    Flog.info("buf isn't populated yet %s", file.getPath());
+                    return;
+                }
+                send_patch(file);
+            }
+        });
+    }
+
+    /**
+     * Forgets our contents and unacked patches before asking for a fresh copy.
+     */
+    public void reset() {
+        serial.execute(new Runnable() {
+            @Override
+            public void run() {
+                clearPending();
+                set(null, null);
+            }
+        });
+    }
+
+    public void sendDeferred() {
+        IFile virtualFile = getVirtualFile();
+        if (virtualFile == null) {
+            return;
+        }
+        send_patch(virtualFile);
+    }
+
+    /**
+     * Drops our contents unless something still needs them. Only call it in a turn of serial.
+     */
+    synchronized boolean evict() {
+        if (buf == null || md5 == null || timeout != null || forced_patch || deferred || !pending.isEmpty()) {
+            return false;
+        }
+        buf = null;
+        evicted = true;
+        return true;
+    }
+
+    protected void touch() {
+        ShadowStore s = store;
+        if (s != null) {
+            s.touch(this);
+        }
     }
 
     protected IFile getVirtualFile() {
@@ -74,11 +317,20 @@ public abstract class Buf <T> {
 
 
     abstract public void read ();
+    /**
+     * Sets our contents from bytes read straight off disk instead of through the editor.
+     */
+    abstract public void read(byte[] bytes);
     abstract public void write();
     abstract public void set (String s, String md5);
     abstract public void patch (FlooPatch res);
     abstract public void send_patch (IFile virtualFile);
     abstract public String serialize();
+    abstract long contentSize();
+    /**
+     * Reads our contents back from disk. Only keeps them if they still match our md5.
+     */
+    abstract protected boolean rehydrate();
 
     public static Buf createBuf(String path, Integer id, Encoding enc, String md5, IContext context, OutboundRequestHandler outbound) {
         if (enc == Encoding.BASE64) {
@@ -86,6 +338,23 @@ public abstract class Buf <T> {
         }
         return new TextBuf(path, id, null, md5, context, outbound);
     }
+    /**
+     * Creates a buffer from bytes read straight off disk. It's a text buffer if bytes are valid UTF-8.
+     */
+    public static Buf createBuf(String path, byte[] bytes, IContext context, OutboundRequestHandler outbound) {
+        try {
+            String encodedContents = new String(bytes, "UTF-8");
+            if (Arrays.equals(encodedContents.getBytes("UTF-8"), bytes)) {
+                String contents = Utils.normalizeNewLines(encodedContents);
+                return new TextBuf(path, null, contents, DigestUtils.md5Hex(contents), context, outbound);
+            }
+        } catch (UnsupportedEncodingException e) {
+            Flog.error(e);
+            return null;
+        }
+        return new BinaryBuf(path, null, bytes, DigestUtils.md5Hex(bytes), context, outbound);
+    }
+
     public static Buf createBuf(IFile virtualFile, IContext context, OutboundRequestHandler outbound) {
         try {
             byte[] originalBytes = virtualFile.getBytes();
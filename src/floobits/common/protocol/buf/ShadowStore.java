@@ -0,0 +1,138 @@
+package floobits.common.protocol.buf;
+
+import floobits.common.interfaces.IContext;
+import floobits.common.interfaces.IFile;
+import floobits.utilities.Flog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps how much buffer content we keep in memory. When we go over maxSize the least recently used buffers that
+ * aren't open in an editor drop their contents and only keep their id, path and md5. Their contents are read back
+ * from disk (and checked against the md5) or fetched with get_buf the next time something needs them.
+ */
+public class ShadowStore {
+    public static long maxSize = 1024 * 1024 * 64;
+    private final IContext context;
+    // Access ordered, so iteration starts at the least recently used buffer.
+    private final LinkedHashMap<Buf, Long> weights = new LinkedHashMap<Buf, Long>(16, 0.75f, true);
+    private long size = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ShadowStore(IContext context) {
+        this.context = context;
+    }
+
+    public void add(Buf buf) {
+        buf.store = this;
+        touch(buf);
+    }
+
+    public void remove(Buf buf) {
+        synchronized (this) {
+            Long weight = weights.remove(buf);
+            if (weight != null) {
+                size -= weight;
+            }
+        }
+        buf.store = null;
+    }
+
+    /**
+     * Call this whenever a buffer's contents are used or replaced. Never call it while holding a lock on a buffer.
+     */
+    void touch(Buf buf) {
+        long weight = buf.contentSize();
+        synchronized (this) {
+            Long previous = weight > 0 ? weights.put(buf, weight) : weights.remove(buf);
+            size += weight - (previous == null ? 0 : previous);
+            if (size <= maxSize) {
+                return;
+            }
+        }
+        shrink(buf);
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    private void shrink(Buf keep) {
+        ArrayList<Buf> candidates;
+        synchronized (this) {
+            if (size <= maxSize) {
+                return;
+            }
+            // Least recently used first. Buffers that can't be evicted are passed over once, not on every pass.
+            candidates = new ArrayList<Buf>(weights.keySet());
+        }
+        for (Buf victim : candidates) {
+            synchronized (this) {
+                if (size <= maxSize) {
+                    return;
+                }
+            }
+            if (victim == keep || isOpen(victim) || !evict(victim)) {
+                continue;
+            }
+            evictions.incrementAndGet();
+            synchronized (this) {
+                Long weight = weights.remove(victim);
+                if (weight != null) {
+                    size -= weight;
+                }
+            }
+        }
+        if (getSize() > maxSize) {
+            Flog.log("Shadow store is over its limit but everything left is in use.");
+        }
+    }
+
+    /**
+     * Evicts buf in a turn of its serial executor, so it can't happen in the middle of a patch. A buffer that has
+     * work running or waiting there is in use, and is left alone.
+     */
+    private boolean evict(final Buf buf) {
+        final boolean[] evicted = new boolean[1];
+        return buf.serial.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                evicted[0] = buf.evict();
+            }
+        }) && evicted[0];
+    }
+
+    private boolean isOpen(Buf buf) {
+        IFile file = buf.getVirtualFile();
+        return file != null && context.iFactory.isFileOpen(file);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return String.format("size: %s/%s hits: %s misses: %s evictions: %s", getSize(), maxSize, getHits(),
+                getMisses(), getEvictions());
+    }
+}
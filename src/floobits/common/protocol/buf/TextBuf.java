@@ -1,8 +1,8 @@
 package floobits.common.protocol.buf;
 
-import floobits.common.Constants;
 import floobits.common.Encoding;
 import floobits.common.OutboundRequestHandler;
+import floobits.common.Utils;
 import floobits.common.dmp.FlooDmp;
 import floobits.common.dmp.FlooPatchPosition;
 import floobits.common.dmp.diff_match_patch;
@@ -13,17 +13,24 @@ import floobits.common.protocol.FlooPatch;
 import floobits.utilities.Flog;
 import org.apache.commons.codec.digest.DigestUtils;
 
+import java.io.UnsupportedEncodingException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class TextBuf extends Buf<String> {
+    // How long to wait for a patch or ack that shows a rebased patch left us in sync before fetching the buffer.
+    public static int rebaseCheckTimeout = 10000;
     protected static FlooDmp dmp = new FlooDmp();
+    // The document's text as of the last local change or our last write to it.
+    private volatile String docText;
+    private final AtomicBoolean changeQueued = new AtomicBoolean(false);
 
     public TextBuf(String path, Integer id, String buf, String md5, IContext context, OutboundRequestHandler outbound) {
         super(path, id, buf, md5, context, outbound);
         if (buf != null) {
-            this.buf = Constants.NEW_LINE.matcher(buf).replaceAll("\n");
+            this.buf = Utils.normalizeNewLines(buf);
         }
         this.encoding = Encoding.UTF8;
     }
@@ -34,50 +41,147 @@ public class TextBuf extends Buf<String> {
         if (d == null) {
             return;
         }
-        this.buf = d.getText();
-        this.md5 = DigestUtils.md5Hex(this.buf);
+        synchronized (this) {
+            this.buf = d.getText();
+            this.md5 = DigestUtils.md5Hex(this.buf);
+            evicted = false;
+            version++;
+        }
+        touch();
+    }
+
+    /**
+     * Decodes bytes with the file's charset when we can find it, so the md5 matches what the document would have.
+     */
+    public void read(byte[] bytes) {
+        IFile virtualFile = getVirtualFile();
+        String text;
+        if (virtualFile != null) {
+            text = virtualFile.decode(bytes);
+        } else {
+            try {
+                text = new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                Flog.error(e);
+                return;
+            }
+            if (text.startsWith("\uFEFF")) {
+                text = text.substring(1);
+            }
+        }
+        text = Utils.normalizeNewLines(text);
+        synchronized (this) {
+            buf = text;
+            md5 = DigestUtils.md5Hex(text);
+            evicted = false;
+            version++;
+        }
+        touch();
+    }
+
+    protected boolean rehydrate() {
+        // We're usually on our serial executor here, where reading the document would need a read action. Evicted
+        // buffers aren't open in an editor, so disk nearly always matches, and if it doesn't the md5 check fails.
+        IFile virtualFile = getVirtualFile();
+        if (virtualFile == null) {
+            return false;
+        }
+        byte[] bytes = virtualFile.getBytes();
+        if (bytes == null) {
+            return false;
+        }
+        String text = Utils.normalizeNewLines(virtualFile.decode(bytes));
+        if (!DigestUtils.md5Hex(text).equals(md5)) {
+            return false;
+        }
+        buf = text;
+        return true;
+    }
+
+    long contentSize() {
+        String text = buf;
+        return text == null ? 0 : text.length() * 2L;
     }
 
     public void write() {
-        if (!isPopulated()) {
+        final String text = buf;
+        if (id == null || text == null) {
             Flog.warn("Unable to write %s because it's not populated yet.", path);
             return;
         }
 
         IDoc d = getVirtualDoc();
         if (d != null) {
-            synchronized (context) {
-                try {
-                    context.setListener(false);
-                    d.setReadOnly(false);
-                    d.setText(buf);
-                } finally {
-                    context.setListener(true);
-                }
-                return;
+            IFile file = d.getVirtualFile();
+            String absPath = file == null ? context.absPath(path) : file.getPath();
+            context.suppressed.suppress(absPath);
+            try {
+                d.setReadOnly(false);
+                d.setText(text);
+                docText = text;
+            } finally {
+                context.suppressed.release(absPath);
             }
+            return;
         }
 
         Flog.warn("Tried to write to null document: %s", path);
 
         IFile virtualFile = getOrCreateFile();
         try {
-            virtualFile.setBytes(buf.getBytes("UTF-8"));
+            virtualFile.setBytes(text.getBytes("UTF-8"));
         } catch (Throwable e) {
             Flog.error(e);
             context.errorMessage("The Floobits plugin was unable to write to a file.");
         }
     }
 
-    synchronized public void set(String s, String newMD5) {
-        buf = s == null ? null : Constants.NEW_LINE.matcher(s).replaceAll("\n");
-        md5 = newMD5;
+    public void set(String s, String newMD5) {
+        synchronized (this) {
+            buf = s == null ? null : Utils.normalizeNewLines(s);
+            md5 = newMD5;
+            evicted = false;
+            version++;
+        }
+        touch();
     }
 
     public String serialize() {
         return buf;
     }
 
+    /**
+     * Reads the document here and works out the patch on our serial executor. Changes that come in while one is
+     * waiting there go out with it.
+     */
+    @Override
+    public void changed(IFile file) {
+        IDoc d = context.iFactory.getDocument(file);
+        if (d == null) {
+            Flog.warn("Can't get document to read from disk for sending patch %s", path);
+            return;
+        }
+        docText = d.getText();
+        if (!changeQueued.compareAndSet(false, true)) {
+            return;
+        }
+        serial.execute(new Runnable() {
+            @Override
+            public void run() {
+                changeQueued.set(false);
+                String current = docText;
+                if (isBad(TextBuf.this)) {
+                    Flog.info("buf isn't populated yet %s", path);
+                    return;
+                }
+                if (current.equals(buf)) {
+                    return;
+                }
+                send_patch(current);
+            }
+        });
+    }
+
     @Override
     public void send_patch(IFile virtualFile) {
         IDoc d = context.iFactory.getDocument(virtualFile);
@@ -94,9 +198,24 @@ public class TextBuf extends Buf<String> {
         String textPatch;
         String after_md5;
 
+        after_md5 = DigestUtils.md5Hex(current);
         String previous = buf;
+        if (previous == null && ensureContents()) {
+            previous = buf;
+        }
+        if (previous == null) {
+            // Our shadow is gone and the file changed underneath it, so there is nothing to diff against.
+            Flog.log("Shadow for %s was evicted, sending set_buf instead of a patch.", path);
+            set(current, after_md5);
+            outbound.setBuf(this);
+            return;
+        }
+        if (deferIfWindowFull()) {
+            Flog.log("%s patches in flight for %s, holding back this change until the server catches up.",
+                    patchesInFlight(), path);
+            return;
+        }
         before_md5 = md5;
-        after_md5 = DigestUtils.md5Hex(current);
         LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(previous, current);
         textPatch = dmp.patch_toText(patches);
 
@@ -113,10 +232,10 @@ public class TextBuf extends Buf<String> {
         outbound.getBuf(id);
     }
 
-    private void setGetBufTimeout() {
+    private void setGetBufTimeout(int millis) {
         final int buf_id = id;
         cancelTimeout();
-        timeout = context.setTimeout(2000, new Runnable() {
+        timeout = context.setTimeout(millis, new Runnable() {
             @Override
             public void run() {
                 Flog.info("Sending get buf after timeout.");
@@ -130,6 +249,11 @@ public class TextBuf extends Buf<String> {
         Flog.info("Got _on_patch");
 
         String oldText = buf;
+        if (oldText == null) {
+            Flog.warn("No contents to patch for %s", path);
+            getBuf();
+            return;
+        }
         IFile virtualFile = b.getVirtualFile();
         if (virtualFile == null) {
             Flog.warn("VirtualFile is null, no idea what do do. Aborting everything %s", this);
@@ -157,16 +281,28 @@ public class TextBuf extends Buf<String> {
             }
         }
 
-        b.cancelTimeout();
+        // A check armed after a rebase stays armed until a patch starts from the text we ended up with.
+        if (!b.verifyingRebase || res.md5_before.equals(b.md5)) {
+            b.cancelTimeout();
+        }
 
+        // The server hasn't seen all our unacked patches yet, so its md5s won't match ours. If the patch starts from
+        // a state one of them passed through, applying it on top of our shadow rebases it over the rest, and the
+        // server does the same with ours. Anything else means we're out of sync.
+        int inFlight = b.patchesInFlight();
+        boolean rebasing = inFlight > 0 && b.isPendingState(res.md5_before);
         String md5Before = DigestUtils.md5Hex(viewText);
         if (!md5Before.equals(res.md5_before)) {
-            Flog.error("starting md5s don't match for %s. this is dangerous!", b.path);
+            if (rebasing) {
+                Flog.log("Rebasing patch for %s over %s pending patches.", b.path, inFlight);
+            } else {
+                Flog.error("starting md5s don't match for %s. this is dangerous!", b.path);
+            }
         }
 
         List<diff_match_patch.Patch> patches =  dmp.patch_fromText(res.patch);
         final Object[] results = dmp.patch_apply((LinkedList<diff_match_patch.Patch>) patches, oldText);
-        final String patchedContents = (String) results[0];
+        final String patchedContents = Utils.normalizeNewLines((String) results[0]);
         final boolean[] patchesClean = (boolean[]) results[1];
         final FlooPatchPosition[] positions = (FlooPatchPosition[]) results[2];
 
@@ -177,7 +313,6 @@ public class TextBuf extends Buf<String> {
                 return;
             }
         }
-        // XXX: If patchedContents have carriage returns this will be a problem:
         String md5After = DigestUtils.md5Hex(patchedContents);
         if (!md5After.equals(res.md5_after)) {
             Flog.info("MD5 after mismatch (ours %s remote %s)", md5After, res.md5_after);
@@ -196,11 +331,18 @@ public class TextBuf extends Buf<String> {
 
         String md5FromDoc = DigestUtils.md5Hex(text);
         if (!md5FromDoc.equals(res.md5_after)) {
-            Flog.info("md5FromDoc mismatch (ours %s remote %s)", md5FromDoc, res.md5_after);
-            b.setGetBufTimeout();
+            if (rebasing) {
+                Flog.log("md5FromDoc differs from remote for %s while %s patches are in flight.", b.path, inFlight);
+                b.setGetBufTimeout(rebaseCheckTimeout);
+                b.verifyingRebase = true;
+            } else {
+                Flog.info("md5FromDoc mismatch (ours %s remote %s)", md5FromDoc, res.md5_after);
+                b.setGetBufTimeout(2000);
+            }
         }
 
         b.set(text, md5FromDoc);
+        docText = text;
         Flog.log("Patched %s", res.path);
     }
 }
@@ -1,6 +1,8 @@
 package floobits.common.protocol.handlers;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import floobits.common.FlooUrl;
 import floobits.common.OutboundRequestHandler;
 import floobits.common.interfaces.IContext;
@@ -19,6 +21,10 @@ abstract public class BaseHandler {
     }
 
     void _on_error(JsonObject jsonObject) {
+        JsonElement reqId = jsonObject.get("req_id");
+        if (outbound != null && reqId != null && !reqId.isJsonNull()) {
+            outbound.requestFailed(reqId.getAsInt());
+        }
         String reason = jsonObject.get("msg").getAsString();
         reason = String.format("Floobits Error: %s", reason);
         Flog.error(reason);
@@ -53,6 +59,13 @@ abstract public class BaseHandler {
         _on_data(name, obj);
     }
 
+    /**
+     * Connection only calls this for room_info messages big enough to be worth streaming.
+     */
+    public void on_room_info(String msg) {
+        on_data("room_info", (JsonObject) new JsonParser().parse(msg));
+    }
+
     public abstract void on_connect();
 
     public FlooUrl getUrl() {
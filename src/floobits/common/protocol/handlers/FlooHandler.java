@@ -50,13 +50,24 @@ public class FlooHandler extends BaseHandler {
         editorEventHandler.go();
 
         if (context.isAccountAutoGenerated()) {
-            FlooUserDetail flooUserDetail = API.getUserDetail(context, state);
-            if (flooUserDetail != null && !flooUserDetail.auto_created) {
-                persistentJson.auto_generated_account = false;
-                persistentJson.save();
-                return;
-            }
-            context.notifyCompleteSignUp();
+            IOExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    FlooUserDetail flooUserDetail = API.getUserDetail(context, state);
+                    if (flooUserDetail != null && !flooUserDetail.auto_created) {
+                        PersistentJson persistentJson = PersistentJson.getInstance();
+                        persistentJson.auto_generated_account = false;
+                        persistentJson.save();
+                        return;
+                    }
+                    context.mainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            context.notifyCompleteSignUp();
+                        }
+                    });
+                }
+            });
         }
     }
 
@@ -65,6 +76,8 @@ public class FlooHandler extends BaseHandler {
             return;
         }
         context.connected();
+        outbound.reset();
+        inbound.reset();
         context.statusMessage(String.format("Connecting to %s.", Utils.getLinkHTML(url.toString(), url.toString())));
         conn.write(new FlooAuth(auth.get("username"), auth.get("api_key"), auth.get("secret"), url.owner, url.workspace));
     }
@@ -79,9 +92,22 @@ public class FlooHandler extends BaseHandler {
         }
     }
 
+    @Override
+    public void on_room_info(String msg) {
+        try {
+            inbound.on_room_info(msg);
+        } catch (Throwable e) {
+            Flog.error(String.format("on_room_info error \n\n%s", e.toString()));
+            API.uploadCrash(this, context, e);
+        }
+    }
+
     @Override
     public void shutdown() {
         super.shutdown();
+        if (inbound != null) {
+            inbound.reset();
+        }
         context.statusMessage(String.format("Leaving workspace %s.", Utils.getLinkHTML(url.toString(), url.toString())));
         state.shutdown();
     }
@@ -12,12 +12,12 @@ import java.util.Map;
 public class HandleTooBigDialog extends CustomButtonDialogWrapper {
     protected FileListPromptForm form;
 
-    public HandleTooBigDialog(final HashMap<String, Integer> bigStuff) {
+    public HandleTooBigDialog(final HashMap<String, Long> bigStuff) {
         super(true);
         setTitle("Your Project Is Too Large");
         form = new FileListPromptForm(String.format("Ignore the following (%d) directories and continue?", bigStuff.size()));
         ArrayList<String> problems = new ArrayList<String>();
-        for (Map.Entry<String, Integer> bigData : bigStuff.entrySet()) {
+        for (Map.Entry<String, Long> bigData : bigStuff.entrySet()) {
                 String size = NumberFormat.getInstance().format(bigData.getValue()/1000);
             problems.add(String.format("<html><p>%s <i>(%s MB)</i></p></html>", bigData.getKey(), size));
         }
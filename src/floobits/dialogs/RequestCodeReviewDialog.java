@@ -3,6 +3,7 @@ package floobits.dialogs;
 import com.intellij.openapi.project.Project;
 import floobits.common.API;
 import floobits.common.FlooUrl;
+import floobits.common.IOExecutor;
 import floobits.common.interfaces.IContext;
 import org.jetbrains.annotations.Nullable;
 
@@ -36,9 +37,14 @@ public class RequestCodeReviewDialog extends CustomButtonDialogWrapper {
             @Override
             public void run() {
                 container.setVisible(false);
-                String text = description.getText();
-                String s = API.requestReview(flooUrl, text, context);
-                context.flashMessage(s);
+                final String text = description.getText();
+                IOExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String s = API.requestReview(flooUrl, text, context);
+                        context.flashMessage(s);
+                    }
+                });
             }
         });
         actions = new Action[]{requestReviewAction, cancel};
@@ -13,6 +13,8 @@ import com.intellij.openapi.ui.popup.Balloon;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.WindowManager;
 import floobits.Listener;
 import floobits.common.*;
 import floobits.common.interfaces.IContext;
@@ -40,8 +42,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -60,7 +60,6 @@ public class ContextImpl extends IContext {
     public ConcurrentHashMap<String, BalloonState> gravatars = new ConcurrentHashMap<String, BalloonState>();
     public Project project;
     public FloobitsWindowManager floobitsWindowManager;
-    private ExecutorService pool;
 
     public ContextImpl(Project project) {
         super();
@@ -97,6 +96,18 @@ public class ContextImpl extends IContext {
         chatStatusMessage(message);
     }
 
+    @Override public void progressMessage(final String message) {
+        mainThread(new Runnable() {
+            @Override
+            public void run() {
+                StatusBar statusBar = WindowManager.getInstance().getStatusBar(project);
+                if (statusBar != null) {
+                    statusBar.setInfo(message);
+                }
+            }
+        });
+    }
+
     @Override public void errorMessage(String message) {
         Flog.error(message);
         statusMessage(message, NotificationType.ERROR);
@@ -128,15 +139,12 @@ public class ContextImpl extends IContext {
 
     @Override
     protected void shareProjectDialog(String name, List<String> orgs, final String host, final boolean _private_, final String projectPath) {
-        final ContextImpl context = this;
         ShareProjectDialog shareProjectDialog = new ShareProjectDialog(name, orgs, project,
                 new RunLater<ShareProjectDialog>() {
                     @Override
                     public void run(ShareProjectDialog dialog) {
-                        if (API.createWorkspace(host, dialog.getOrgName(), dialog.getWorkspaceName(), context, _private_)) {
-                            FlooUrl url = new FlooUrl(host, dialog.getOrgName(), dialog.getWorkspaceName(), Constants.defaultPort, true);
-                            joinWorkspace(url, projectPath, true, null);
-                        }
+                        createWorkspaceAndJoin(host, dialog.getOrgName(), dialog.getWorkspaceName(), _private_,
+                                projectPath, null);
                     }
                 },
                 new RunLater<ShareProjectDialog>() {
@@ -151,16 +159,14 @@ public class ContextImpl extends IContext {
                             Flog.warn("No directory selected for picking files to upload in share project.");
                             return;
                         }
-                        if (API.createWorkspace(host, dialog.getOrgName(), dialog.getWorkspaceName(), context, _private_)) {
-                            FlooUrl url = new FlooUrl(host, dialog.getOrgName(), dialog.getWorkspaceName(), Constants.defaultPort, true);
-                            String filePath = vFiles[0].getCanonicalPath();
-                            if (filePath == null) {
-                                Flog.warn("Upload for picked directory in share project has a null path");
-                                return;
-                            }
-                            IFile dirToAdd = iFactory.findFileByIoFile(new File(filePath));
-                            joinWorkspace(url, projectPath, true, dirToAdd);
+                        String filePath = vFiles[0].getCanonicalPath();
+                        if (filePath == null) {
+                            Flog.warn("Upload for picked directory in share project has a null path");
+                            return;
                         }
+                        IFile dirToAdd = iFactory.findFileByIoFile(new File(filePath));
+                        createWorkspaceAndJoin(host, dialog.getOrgName(), dialog.getWorkspaceName(), _private_,
+                                projectPath, dirToAdd);
                     }
                 });
         shareProjectDialog.createCenterPanel();
@@ -207,10 +213,6 @@ public class ContextImpl extends IContext {
     @Override
     public void connected() {
         editor.reset();
-        if (pool != null) {
-            Flog.info("Pool wasn't null when creating a new one.");
-        }
-        pool = Executors.newFixedThreadPool(5);
     }
 
     @Override
@@ -234,10 +236,6 @@ public class ContextImpl extends IContext {
             Flog.error(e);
         }
         listener = new Listener(this);
-        if (pool != null) {
-            pool.shutdownNow();
-            pool = null;
-        }
     }
 
     public void setListener(boolean b) {
@@ -254,13 +252,20 @@ public class ContextImpl extends IContext {
     }
 
     @Override
-    public void readThread(final Runnable runnable) {
+    public void readThread(final String event, final Runnable runnable) {
         final ContextImpl context = this;
+        final long queued = System.nanoTime();
         mainThread(new Runnable() {
             @Override
             public void run() {
+                final long dispatched = System.nanoTime();
                 try {
-                    ApplicationManager.getApplication().runReadAction(runnable);
+                    ApplicationManager.getApplication().runReadAction(new Runnable() {
+                        @Override
+                        public void run() {
+                            timed(editor.stats.get("read thread", event), queued, dispatched, runnable);
+                        }
+                    });
                 } catch (Throwable throwable) {
                     API.uploadCrash(context, throwable);
                 }
@@ -269,12 +274,14 @@ public class ContextImpl extends IContext {
     }
 
     @Override
-    public void writeThread(final Runnable runnable) {
+    public void writeThread(final String event, final Runnable runnable) {
         final long l = System.currentTimeMillis();
         final ContextImpl context = this;
+        final long queued = System.nanoTime();
         mainThread(new Runnable() {
             @Override
             public void run() {
+                final long dispatched = System.nanoTime();
                 CommandProcessor.getInstance().executeCommand(context.project, new Runnable() {
                     @Override
                     public void run() {
@@ -286,7 +293,7 @@ public class ContextImpl extends IContext {
                                     Flog.log("spent %s getting lock", time);
                                 }
                                 try {
-                                    runnable.run();
+                                    timed(editor.stats.get("write thread", event), queued, dispatched, runnable);
                                 } catch (Throwable throwable) {
                                     API.uploadCrash(context, throwable);
                                 }
@@ -298,6 +305,21 @@ public class ContextImpl extends IContext {
         });
     }
 
+    /**
+     * Runs runnable, which already holds its lock, and records how long it waited, how much of that was for the
+     * lock, and how long it ran.
+     */
+    private static void timed(EditorStats.Timings timings, long queued, long dispatched, Runnable runnable) {
+        long started = System.nanoTime();
+        timings.wait.record(started - queued);
+        timings.lock.record(started - dispatched);
+        try {
+            runnable.run();
+        } finally {
+            timings.run.record(System.nanoTime() - started);
+        }
+    }
+
     @Override
     public void dialog(String title, String body, RunLater<Boolean> runLater) {
         DialogBuilder.build(title, body, runLater);
@@ -333,7 +355,7 @@ public class ContextImpl extends IContext {
     }
 
     @Override
-    public boolean dialogTooBig(HashMap<String, Integer> bigStuff) {
+    public boolean dialogTooBig(HashMap<String, Long> bigStuff) {
         HandleTooBigDialog handleTooBigDialog = new HandleTooBigDialog(bigStuff);
         handleTooBigDialog.createCenterPanel();
         handleTooBigDialog.show();
@@ -457,18 +479,13 @@ public class ContextImpl extends IContext {
 
     @Override
     public void addUser(final FlooUser user) {
-        if (pool == null) {
-            Flog.info("Pool is null cannot add user.");
-            return;
-        }
-
         if (user.color != null) {
             Colors.color_map.put(user.username, user.color);
         }
 
         statusMessage(String.format("%s joined the workspace on %s (%s).", user.username, user.platform, user.client));
         Flog.info("Adding gravatar for user %s.", user);
-        pool.execute(new Runnable() {
+        IOExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 Image img;
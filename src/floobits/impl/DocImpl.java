@@ -2,7 +2,6 @@ package floobits.impl;
 
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.*;
-import com.intellij.openapi.editor.markup.*;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.ui.popup.Balloon;
@@ -13,8 +12,8 @@ import com.intellij.psi.codeStyle.CodeStyleSettings;
 import com.intellij.psi.codeStyle.CodeStyleSettingsManager;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.awt.RelativePoint;
-import floobits.common.Constants;
 import floobits.common.HighlightContext;
+import floobits.common.Utils;
 import floobits.common.dmp.FlooPatchPosition;
 import floobits.common.interfaces.IDoc;
 import floobits.common.protocol.handlers.FlooHandler;
@@ -32,7 +31,7 @@ public class DocImpl extends IDoc {
     private final ContextImpl context;
     private final Document document;
     private int editorWidth = 0;
-    public final static HashMap<Integer, HashMap<String, LinkedList<RangeHighlighter>>> highlights = new HashMap<Integer, HashMap<String, LinkedList<RangeHighlighter>>>();
+    public final static HighlightRegistry highlights = new HighlightRegistry();
 
     public DocImpl(ContextImpl context, Document document) {
         this.context = context;
@@ -47,72 +46,20 @@ public class DocImpl extends IDoc {
         return document.toString();
     }
 
-    protected LinkedList<RangeHighlighter> getHighlightsForUser(String path, int userID) {
-        HashMap<String, LinkedList<RangeHighlighter>> integerRangeHighlighterHashMap = highlights.get(userID);
-        if (integerRangeHighlighterHashMap == null) {
-            return null;
-        }
-        final LinkedList<RangeHighlighter> rangeHighlighters = integerRangeHighlighterHashMap.get(path);
-        if (rangeHighlighters == null) {
-            return null;
-        }
-        return rangeHighlighters;
-    }
-
-    protected void removeHighlights(MarkupModel markupModel, LinkedList<RangeHighlighter> appliedHighlighters){
-        if (appliedHighlighters == null) {
-            return;
-        }
-        RangeHighlighter[] existingHighlighters = markupModel.getAllHighlighters();
-        for (RangeHighlighter rangeHighlighter: appliedHighlighters) {
-            for (RangeHighlighter markupHighlighter : existingHighlighters) {
-                if (rangeHighlighter == markupHighlighter) {
-                    markupModel.removeHighlighter(rangeHighlighter);
-                }
-            }
-        }
-    }
-
     @Override
     public void removeHighlight(Integer userId, final String path) {
-        HashMap<String, LinkedList<RangeHighlighter>> integerRangeHighlighterHashMap = highlights.get(userId);
-        if (integerRangeHighlighterHashMap == null) {
-            return;
-        }
-        final LinkedList<RangeHighlighter> rangeHighlighters = integerRangeHighlighterHashMap.get(path);
-        if (rangeHighlighters == null) {
-            return;
-        }
-        Editor[] editors = EditorFactory.getInstance().getEditors(document, context.project);
-        for (Editor editor : editors) {
-            if (editor.isDisposed()) {
-                continue;
-            }
-            removeHighlights(editor.getMarkupModel(), rangeHighlighters);
-        }
-        rangeHighlighters.clear();
+        highlights.remove(userId, path);
     }
 
     protected void applyHighlight_(HighlightContext highlight) {
-        final TextAttributes attributes = new TextAttributes();
         final JBColor color = Colors.getColorForUser(highlight.username);
         final ContextImpl context = (ContextImpl) highlight.context;
         FlooHandler handler = highlight.context.getFlooHandler();
         if (handler == null) {
             return;
         }
-        attributes.setEffectColor(color);
-        attributes.setEffectType(EffectType.SEARCH_MATCH);
-        attributes.setBackgroundColor(color);
-        attributes.setForegroundColor(Color.WHITE);
         int textLength = highlight.textLength;
-        int userID = highlight.userid;
-        LinkedList<RangeHighlighter> appliedHighlighters = getHighlightsForUser(highlight.path, userID);
-        LinkedList<RangeHighlighter> newHighlighters = new LinkedList<RangeHighlighter>();
-
-        boolean first = true;
-        Editor[] editors = EditorFactory.getInstance().getEditors(document, context.project);
-
+        List<int[]> ranges = new ArrayList<int[]>(highlight.ranges.size());
         for (List<Integer> range : highlight.ranges) {
             int start = range.get(0);
             int end = range.get(1);
@@ -125,17 +72,20 @@ public class DocImpl extends IDoc {
             if (start >= textLength) {
                 start = textLength - 1;
             }
+            ranges.add(new int[]{start, end});
+        }
+
+        boolean first = true;
+        Editor[] editors = EditorFactory.getInstance().getEditors(document, context.project);
+        highlights.update(highlight.userid, highlight.path, editors, ranges, highlights.getAttributes(color));
+
+        for (int[] range : ranges) {
+            final int start = range[0];
             final int balloonOffset = start;
             for (final Editor editor : editors) {
                 if (editor.isDisposed()) {
                     continue;
                 }
-                final MarkupModel markupModel = editor.getMarkupModel();
-                removeHighlights(markupModel, appliedHighlighters);
-
-                RangeHighlighter rangeHighlighter = markupModel.addRangeHighlighter(start, end, HighlighterLayer.ERROR + 100, attributes, HighlighterTargetArea.EXACT_RANGE);
-
-                newHighlighters.add(rangeHighlighter);
                 CaretModel caretModel = editor.getCaretModel();
                 final LogicalPosition logPos = editor.offsetToLogicalPosition(start);
                 final String htmlText = String.format("<p style=\"color:#333\">%s</p>", highlight.username);
@@ -195,13 +145,6 @@ public class DocImpl extends IDoc {
                     }
                 }
             }
-            HashMap<String, LinkedList<RangeHighlighter>> integerRangeHighlighterHashMap = highlights.get(userID);
-
-            if (integerRangeHighlighterHashMap == null) {
-                integerRangeHighlighterHashMap = new HashMap<String, LinkedList<RangeHighlighter>>();
-                highlights.put(userID, integerRangeHighlighterHashMap);
-            }
-            integerRangeHighlighterHashMap.put(highlight.path, newHighlighters);
         }
     }
 
@@ -225,17 +168,17 @@ public class DocImpl extends IDoc {
         if (highlight.textLength == 0) {
             return;
         }
-        synchronized (context) {
-            try {
-                context.setListener(false);
-                highlight.force = highlight.force || highlight.following;
-                highlight.context = context;
-                applyHighlight_(highlight);
-            } catch (Throwable e) {
-                Flog.error(e);
-            } finally {
-                context.setListener(true);
-            }
+        // Caret moves in this document are now ours, and are sent as following instead of as a highlight.
+        String path = virtualFile == null ? "" : virtualFile.getPath();
+        context.suppressed.suppress(path);
+        try {
+            highlight.force = highlight.force || highlight.following;
+            highlight.context = context;
+            applyHighlight_(highlight);
+        } catch (Throwable e) {
+            Flog.error(e);
+        } finally {
+            context.suppressed.release(path);
         }
     }
 
@@ -295,22 +238,23 @@ public class DocImpl extends IDoc {
     }
 
     public String patch(FlooPatchPosition[] positions) {
-        for (FlooPatchPosition flooPatchPosition : positions) {
-            final int start = Math.max(0, flooPatchPosition.start);
-            int end_ld = Math.max(start + flooPatchPosition.end, start);
-            end_ld = Math.min(end_ld, document.getTextLength());
-            final String contents = Constants.NEW_LINE.matcher(flooPatchPosition.text).replaceAll("\n");
-            final int finalEnd_ld = end_ld;
-            synchronized (context) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        String path = file == null ? "" : file.getPath();
+        context.suppressed.suppress(path);
+        try {
+            for (FlooPatchPosition flooPatchPosition : positions) {
+                final int start = Math.max(0, flooPatchPosition.start);
+                int end_ld = Math.max(start + flooPatchPosition.end, start);
+                end_ld = Math.min(end_ld, document.getTextLength());
+                final String contents = Utils.normalizeNewLines(flooPatchPosition.text);
                 try {
-                    context.setListener(false);
-                    document.replaceString(start, finalEnd_ld, contents);
+                    document.replaceString(start, end_ld, contents);
                 } catch (Throwable e) {
                     Flog.error(e);
-                } finally {
-                    context.setListener(true);
                 }
             }
+        } finally {
+            context.suppressed.release(path);
         }
         return document.getText();
     }
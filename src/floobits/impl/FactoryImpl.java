@@ -1,12 +1,14 @@
 package floobits.impl;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import floobits.common.EditorPriority;
 import floobits.common.EditorScheduler;
 import floobits.common.interfaces.IDoc;
 import floobits.common.interfaces.IFactory;
@@ -17,8 +19,7 @@ import floobits.utilities.Flog;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.HashSet;
 
 public class FactoryImpl implements IFactory {
 
@@ -96,13 +97,8 @@ public class FactoryImpl implements IFactory {
 
     @Override
     public void removeHighlightsForUser(int userID) {
-        HashMap<String, LinkedList<RangeHighlighter>> integerRangeHighlighterHashMap = DocImpl.highlights.get(userID);
-        if (integerRangeHighlighterHashMap == null) {
-            return;
-        }
-
-        for (Map.Entry<String, LinkedList<RangeHighlighter>> entry : integerRangeHighlighterHashMap.entrySet()) {
-            removeHighlight(userID, entry.getKey());
+        for (String path : DocImpl.highlights.getPaths(userID)) {
+            removeHighlight(userID, path);
         }
     }
 
@@ -116,13 +112,79 @@ public class FactoryImpl implements IFactory {
         return true;
     }
 
+    /**
+     * Called from network and worker threads, so this runs in a read action.
+     */
+    @Override
+    public boolean isFileOpen(final IFile file) {
+        return ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+            @Override
+            public Boolean compute() {
+                return !context.project.isDisposed() &&
+                        FileEditorManager.getInstance(context.project).isFileOpen(((FileImpl) file).virtualFile);
+            }
+        });
+    }
+
+    /**
+     * Called from network and worker threads, so this only uses public APIs, in a read action.
+     */
+    @Override
+    public HashMap<String, Integer> getEditorPriorities() {
+        return ApplicationManager.getApplication().runReadAction(new Computable<HashMap<String, Integer>>() {
+            @Override
+            public HashMap<String, Integer> compute() {
+                HashMap<String, Integer> priorities = new HashMap<String, Integer>();
+                if (context.project.isDisposed()) {
+                    return priorities;
+                }
+                FileDocumentManager fileDocumentManager = FileDocumentManager.getInstance();
+                for (Document document : fileDocumentManager.getUnsavedDocuments()) {
+                    VirtualFile file = fileDocumentManager.getFile(document);
+                    if (file != null) {
+                        priorities.put(file.getPath(), EditorPriority.RECENT);
+                    }
+                }
+                FileEditorManager fileEditorManager = FileEditorManager.getInstance(context.project);
+                for (VirtualFile file : fileEditorManager.getOpenFiles()) {
+                    priorities.put(file.getPath(), EditorPriority.OPEN);
+                }
+                for (VirtualFile file : fileEditorManager.getSelectedFiles()) {
+                    priorities.put(file.getPath(), EditorPriority.SELECTED);
+                }
+                return priorities;
+            }
+        });
+    }
+
+    /**
+     * Called from the network thread while room_info is read, so this runs in a read action.
+     */
+    @Override
+    public HashSet<String> getUnsavedDocumentPaths() {
+        return ApplicationManager.getApplication().runReadAction(new Computable<HashSet<String>>() {
+            @Override
+            public HashSet<String> compute() {
+                HashSet<String> paths = new HashSet<String>();
+                FileDocumentManager fileDocumentManager = FileDocumentManager.getInstance();
+                for (Document document : fileDocumentManager.getUnsavedDocuments()) {
+                    VirtualFile file = fileDocumentManager.getFile(document);
+                    if (file != null) {
+                        paths.add(file.getPath());
+                    }
+                }
+                return paths;
+            }
+        });
+    }
+
     @Override
     public void removeHighlight(final Integer userId, final String path) {
         final IFile iFile = findFileByPath(path);
         if (iFile == null) {
             return;
         }
-        editor.queue(new Runnable() {
+        editor.queueRead("remove highlight", new Runnable() {
             @Override
             public void run() {
                 IDoc iDoc = getDocument(iFile);
@@ -136,18 +198,10 @@ public class FactoryImpl implements IFactory {
 
     @Override
     public void clearHighlights() {
-        HashMap<Integer, HashMap<String, LinkedList<RangeHighlighter>>> highlights = DocImpl.highlights;
-        if (highlights.size() <= 0) {
-            return;
-        }
-        for (Map.Entry<Integer, HashMap<String, LinkedList<RangeHighlighter>>> entry : highlights.entrySet()) {
-            HashMap<String, LinkedList<RangeHighlighter>> highlightsForUser = entry.getValue();
-            if (highlightsForUser == null || highlightsForUser.size() <= 0) {
-                continue;
-            }
-            Integer user_id = entry.getKey();
-            for (Map.Entry<String, LinkedList<RangeHighlighter>> integerLinkedListEntry: highlightsForUser.entrySet()) {
-                removeHighlight(user_id, integerLinkedListEntry.getKey());
+        HighlightRegistry highlights = DocImpl.highlights;
+        for (Integer userId : highlights.getUsers()) {
+            for (String path : highlights.getPaths(userId)) {
+                removeHighlight(userId, path);
             }
         }
     }
@@ -1,5 +1,6 @@
 package floobits.impl;
 
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VirtualFile;
 import floobits.common.interfaces.IFile;
@@ -34,6 +35,11 @@ public class FileImpl extends IFile {
         }
     }
 
+    @Override
+    public String decode(byte[] bytes) {
+        return LoadTextUtil.getTextByBinaryPresentation(bytes, virtualFile).toString();
+    }
+
     @Override
     public boolean setBytes(byte[] bytes) {
         try {
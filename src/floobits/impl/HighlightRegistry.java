@@ -0,0 +1,160 @@
+package floobits.impl;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.markup.*;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * The range highlighters we added for each user, file and editor. Each range in a user's highlight has a slot that
+ * keeps its highlighter, so a new highlight only touches the ranges that changed: a range that didn't move is left
+ * alone, a range that moved replaces the highlighter in its slot, and leftover slots are removed. Nothing has to look
+ * through the editor's other highlighters, which can be thousands in a file with lots of inspections.
+ *
+ * Only used from the UI thread.
+ */
+public class HighlightRegistry {
+    private static final int LAYER = HighlighterLayer.ERROR + 100;
+    // user id -> path -> editor -> one highlighter per range.
+    private final HashMap<Integer, HashMap<String, WeakHashMap<Editor, ArrayList<RangeHighlighter>>>> highlights =
+            new HashMap<Integer, HashMap<String, WeakHashMap<Editor, ArrayList<RangeHighlighter>>>>();
+    private final HashMap<Color, TextAttributes> attributes = new HashMap<Color, TextAttributes>();
+
+    /**
+     * @return the same attributes every time for a color, so unchanged highlighters can be recognized.
+     */
+    public TextAttributes getAttributes(Color color) {
+        TextAttributes textAttributes = attributes.get(color);
+        if (textAttributes != null) {
+            return textAttributes;
+        }
+        textAttributes = new TextAttributes();
+        textAttributes.setEffectColor(color);
+        textAttributes.setEffectType(EffectType.SEARCH_MATCH);
+        textAttributes.setBackgroundColor(color);
+        textAttributes.setForegroundColor(Color.WHITE);
+        attributes.put(color, textAttributes);
+        return textAttributes;
+    }
+
+    /**
+     * Makes userId's highlighters for path in each of editors match ranges.
+     * @param ranges start and end offsets, already clamped to the document.
+     */
+    public void update(int userId, String path, Editor[] editors, List<int[]> ranges, TextAttributes textAttributes) {
+        HashMap<String, WeakHashMap<Editor, ArrayList<RangeHighlighter>>> paths = highlights.get(userId);
+        if (paths == null) {
+            paths = new HashMap<String, WeakHashMap<Editor, ArrayList<RangeHighlighter>>>();
+            highlights.put(userId, paths);
+        }
+        WeakHashMap<Editor, ArrayList<RangeHighlighter>> byEditor = paths.get(path);
+        if (byEditor == null) {
+            byEditor = new WeakHashMap<Editor, ArrayList<RangeHighlighter>>();
+            paths.put(path, byEditor);
+        }
+        Set<Editor> current = Collections.newSetFromMap(new IdentityHashMap<Editor, Boolean>());
+        for (Editor editor : editors) {
+            if (editor.isDisposed()) {
+                continue;
+            }
+            current.add(editor);
+            ArrayList<RangeHighlighter> slots = byEditor.get(editor);
+            if (slots == null) {
+                slots = new ArrayList<RangeHighlighter>();
+                byEditor.put(editor, slots);
+            }
+            update(editor.getMarkupModel(), slots, ranges, textAttributes);
+        }
+        Iterator<Map.Entry<Editor, ArrayList<RangeHighlighter>>> iterator = byEditor.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Editor, ArrayList<RangeHighlighter>> entry = iterator.next();
+            if (current.contains(entry.getKey())) {
+                continue;
+            }
+            remove(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private void update(MarkupModel markupModel, ArrayList<RangeHighlighter> slots, List<int[]> ranges,
+                        TextAttributes textAttributes) {
+        for (int i = 0; i < ranges.size(); i++) {
+            int start = ranges.get(i)[0];
+            int end = ranges.get(i)[1];
+            RangeHighlighter old = i < slots.size() ? slots.get(i) : null;
+            if (old != null && old.isValid() && old.getStartOffset() == start && old.getEndOffset() == end &&
+                    old.getTextAttributes() == textAttributes) {
+                continue;
+            }
+            if (old != null && old.isValid()) {
+                markupModel.removeHighlighter(old);
+            }
+            RangeHighlighter highlighter = markupModel.addRangeHighlighter(start, end, LAYER, textAttributes,
+                    HighlighterTargetArea.EXACT_RANGE);
+            if (old != null) {
+                slots.set(i, highlighter);
+            } else {
+                slots.add(highlighter);
+            }
+        }
+        while (slots.size() > ranges.size()) {
+            RangeHighlighter extra = slots.remove(slots.size() - 1);
+            if (extra.isValid()) {
+                markupModel.removeHighlighter(extra);
+            }
+        }
+    }
+
+    private void remove(Editor editor, List<RangeHighlighter> slots) {
+        if (!editor.isDisposed()) {
+            MarkupModel markupModel = editor.getMarkupModel();
+            for (RangeHighlighter highlighter : slots) {
+                if (highlighter.isValid()) {
+                    markupModel.removeHighlighter(highlighter);
+                }
+            }
+        }
+        slots.clear();
+    }
+
+    /**
+     * Removes userId's highlighters for path from every editor.
+     */
+    public void remove(int userId, String path) {
+        HashMap<String, WeakHashMap<Editor, ArrayList<RangeHighlighter>>> paths = highlights.get(userId);
+        if (paths == null) {
+            return;
+        }
+        WeakHashMap<Editor, ArrayList<RangeHighlighter>> byEditor = paths.remove(path);
+        if (paths.isEmpty()) {
+            highlights.remove(userId);
+        }
+        if (byEditor == null) {
+            return;
+        }
+        for (Map.Entry<Editor, ArrayList<RangeHighlighter>> entry : byEditor.entrySet()) {
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean isEmpty() {
+        return highlights.isEmpty();
+    }
+
+    public List<Integer> getUsers() {
+        return new ArrayList<Integer>(highlights.keySet());
+    }
+
+    /**
+     * @return the paths userId has highlights in.
+     */
+    public List<String> getPaths(int userId) {
+        HashMap<String, WeakHashMap<Editor, ArrayList<RangeHighlighter>>> paths = highlights.get(userId);
+        if (paths == null) {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(paths.keySet());
+    }
+}
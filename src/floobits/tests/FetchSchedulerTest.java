@@ -0,0 +1,134 @@
+package floobits.tests;
+
+import floobits.common.EditorPriority;
+import floobits.common.FetchScheduler;
+import floobits.common.RunLater;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FetchSchedulerTest {
+    private final int defaultMaxOutstanding = FetchScheduler.maxOutstanding;
+    private final int defaultTimeout = FetchScheduler.timeout;
+    private final MockContext context = new MockContext();
+
+    @After
+    public void tearDown() {
+        FetchScheduler.maxOutstanding = defaultMaxOutstanding;
+        FetchScheduler.timeout = defaultTimeout;
+        context.shutdown();
+    }
+
+    @Test
+    public void testWindowDedupeAndOrder() {
+        FetchScheduler.maxOutstanding = 2;
+        final List<Integer> sent = new ArrayList<Integer>();
+        FetchScheduler scheduler = new FetchScheduler(context, new RunLater<Integer>() {
+            @Override
+            public void run(Integer id) {
+                sent.add(id);
+            }
+        });
+        scheduler.fetch(1, EditorPriority.OTHER);
+        scheduler.fetch(2, EditorPriority.OTHER);
+        scheduler.fetch(3, EditorPriority.OTHER);
+        scheduler.fetch(4, EditorPriority.OTHER);
+        scheduler.fetch(2, EditorPriority.OTHER);
+        scheduler.fetch(3, EditorPriority.OTHER);
+        scheduler.fetch(4, EditorPriority.SELECTED);
+        assertEquals("Only the window should be sent.", Arrays.asList(1, 2), sent);
+        assertEquals(2, scheduler.getOutstanding());
+        assertEquals("Repeated ids shouldn't be queued twice.", 2, scheduler.getQueued());
+        assertEquals(3, scheduler.getDuplicates());
+
+        scheduler.received(1);
+        assertEquals("Visible buffers should skip ahead.", Arrays.asList(1, 2, 4), sent);
+        scheduler.received(99);
+        assertEquals("Unknown responses shouldn't open the window.", 3, sent.size());
+        scheduler.cancel(2);
+        assertEquals(Arrays.asList(1, 2, 4, 3), sent);
+        scheduler.received(4);
+        scheduler.received(3);
+        assertEquals(0, scheduler.getOutstanding());
+        assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test
+    public void testTimeoutAsksAgain() throws InterruptedException {
+        FetchScheduler.maxOutstanding = 1;
+        FetchScheduler.timeout = 50;
+        final LinkedBlockingQueue<Integer> sent = new LinkedBlockingQueue<Integer>();
+        FetchScheduler scheduler = new FetchScheduler(context, new RunLater<Integer>() {
+            @Override
+            public void run(Integer id) {
+                sent.add(id);
+            }
+        });
+        scheduler.fetch(1, EditorPriority.OTHER);
+        scheduler.fetch(2, EditorPriority.OPEN);
+        assertEquals(Integer.valueOf(1), sent.poll(1, TimeUnit.SECONDS));
+        // The lost request gives up its slot, and the open buffer goes before it's asked for again.
+        assertEquals(Integer.valueOf(2), sent.poll(1, TimeUnit.SECONDS));
+        scheduler.cancel(2);
+        assertEquals(Integer.valueOf(1), sent.poll(1, TimeUnit.SECONDS));
+        scheduler.received(1);
+        assertNull("Nothing should be asked for after a response.", sent.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, scheduler.getTimeouts());
+        assertEquals(0, scheduler.getOutstanding());
+        assertEquals(0, scheduler.getQueued());
+    }
+
+    /**
+     * Fetches 5000 buffers from a stand-in server that answers each get_buf after a millisecond.
+     */
+    @Test
+    public void testStandInServer() throws InterruptedException {
+        final int count = 5000;
+        final ScheduledExecutorService server = Executors.newScheduledThreadPool(4);
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger maxSeen = new AtomicInteger();
+        final int[] sends = new int[count];
+        final FetchScheduler[] scheduler = new FetchScheduler[1];
+        scheduler[0] = new FetchScheduler(context, new RunLater<Integer>() {
+            @Override
+            public void run(final Integer id) {
+                synchronized (sends) {
+                    sends[id]++;
+                }
+                int outstanding = scheduler[0].getOutstanding();
+                if (outstanding > maxSeen.get()) {
+                    maxSeen.set(outstanding);
+                }
+                server.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduler[0].received(id);
+                        done.countDown();
+                    }
+                }, 1, TimeUnit.MILLISECONDS);
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            scheduler[0].fetch(i, i % 100 == 0 ? EditorPriority.OPEN : EditorPriority.OTHER);
+            // Patches failing while a stomp is in progress ask again.
+            if (i % 10 == 0) {
+                scheduler[0].fetch(i / 2, EditorPriority.OTHER);
+            }
+        }
+        assertTrue("Every buffer should be fetched.", done.await(60, TimeUnit.SECONDS));
+        server.shutdown();
+        assertEquals("The window should be filled but never exceeded.", FetchScheduler.maxOutstanding,
+                maxSeen.get());
+        assertEquals(0, scheduler[0].getTimeouts());
+        for (int i = 0; i < count; i++) {
+            assertTrue("Each buffer should be fetched at most twice.", sends[i] >= 1 && sends[i] <= 2);
+        }
+    }
+}
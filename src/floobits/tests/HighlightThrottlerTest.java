@@ -0,0 +1,116 @@
+package floobits.tests;
+
+import com.google.gson.Gson;
+import floobits.common.HighlightThrottler;
+import floobits.common.RunLater;
+import floobits.common.protocol.json.receive.FlooHighlight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HighlightThrottlerTest {
+    private final int defaultMaxPerSecond = HighlightThrottler.maxPerSecond;
+    private final MockContext context = new MockContext();
+    // "user buf" for each highlight shown.
+    private final List<String> shown = Collections.synchronizedList(new ArrayList<String>());
+    // req_id of each highlight shown.
+    private final List<Integer> shownRequests = Collections.synchronizedList(new ArrayList<Integer>());
+    private HighlightThrottler throttler;
+
+    @Before
+    public void setUp() {
+        HighlightThrottler.maxPerSecond = 5;
+        throttler = new HighlightThrottler(context, new RunLater<FlooHighlight>() {
+            @Override
+            public void run(FlooHighlight highlight) {
+                shown.add(String.format("%s %s", highlight.user_id, highlight.id));
+                shownRequests.add(highlight.req_id);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        HighlightThrottler.maxPerSecond = defaultMaxPerSecond;
+        context.shutdown();
+    }
+
+    private static FlooHighlight highlight(int userId, int bufId) {
+        return highlight(userId, bufId, 0, false);
+    }
+
+    private static FlooHighlight highlight(int userId, int bufId, int reqId, boolean summon) {
+        return new Gson().fromJson(String.format("{\"id\": %s, \"user_id\": %s, \"req_id\": %s, \"summon\": %s}",
+                bufId, userId, reqId, summon), FlooHighlight.class);
+    }
+
+    @Test
+    public void testRateCapKeepsNewest() throws InterruptedException {
+        throttler.highlight(highlight(1, 1, 1, false), false);
+        throttler.highlight(highlight(1, 1, 2, false), false);
+        throttler.highlight(highlight(1, 1, 3, false), false);
+        assertEquals("Only the first one is shown right away.", Arrays.asList(1), shownRequests);
+        assertEquals(1, throttler.getReplaced());
+        Thread.sleep(500);
+        assertEquals("The newest one is shown once the interval is up.", Arrays.asList(1, 3), shownRequests);
+    }
+
+    @Test
+    public void testSummonSkipsThrottle() {
+        throttler.highlight(highlight(1, 1, 1, false), false);
+        throttler.highlight(highlight(1, 1, 2, false), false);
+        throttler.highlight(highlight(1, 1, 3, true), false);
+        assertEquals(Arrays.asList(1, 3), shownRequests);
+    }
+
+    @Test
+    public void testFollowedJumpSkipsThrottle() throws InterruptedException {
+        throttler.highlight(highlight(1, 2, 1, false), false);
+        throttler.highlight(highlight(1, 1, 2, false), false);
+        // Back to buffer 2 too soon, but we follow them, so our editor should jump there now.
+        throttler.highlight(highlight(1, 2, 3, false), true);
+        assertEquals(Arrays.asList(1, 2, 3), shownRequests);
+        // The same thing from someone we don't follow waits.
+        throttler.highlight(highlight(2, 2, 4, false), false);
+        throttler.highlight(highlight(2, 1, 5, false), false);
+        throttler.highlight(highlight(2, 2, 6, false), false);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), shownRequests);
+        Thread.sleep(500);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), shownRequests);
+    }
+
+    @Test
+    public void testShownHighlightDropsOtherBuffers() throws InterruptedException {
+        throttler.highlight(highlight(1, 1), false);
+        // Too soon, so it waits.
+        throttler.highlight(highlight(1, 1), false);
+        // Nothing was shown in this buffer yet, so it's shown right away and the wait in buffer 1 is stale.
+        throttler.highlight(highlight(1, 2), false);
+        Thread.sleep(500);
+        assertEquals(Arrays.asList("1 1", "1 2"), shown);
+    }
+
+    @Test
+    public void testClear() throws InterruptedException {
+        throttler.highlight(highlight(1, 1), false);
+        throttler.highlight(highlight(1, 1), false);
+        throttler.highlight(highlight(2, 1), false);
+        throttler.highlight(highlight(2, 1), false);
+        throttler.clear(1);
+        Thread.sleep(500);
+        assertEquals(Arrays.asList("1 1", "2 1", "2 1"), shown);
+
+        throttler.highlight(highlight(2, 1), false);
+        throttler.highlight(highlight(2, 1), false);
+        throttler.clear();
+        Thread.sleep(500);
+        assertEquals(4, shown.size());
+    }
+}
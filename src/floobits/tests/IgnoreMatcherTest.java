@@ -0,0 +1,159 @@
+package floobits.tests;
+
+import floobits.common.jgit.ignore.IgnoreNode;
+import floobits.common.jgit.ignore.IgnoreRule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class IgnoreMatcherTest {
+    static final String[] NAMES = {"a", "b", "foo", "build", "node_modules", ".git", "x.txt", "a.b", "c.o", "z~", "fo"};
+    static final String[] GLOBS = {"*", "*.txt", "*.o", "?", "a*", "*a*", "[ab]", "*.[oa]", "[!a]", "[a-z]*", "\\*",
+            "f?o", "*~", "[[:alpha:]]*", "[", "*.tar.gz", "[]a]"};
+
+    /**
+     * The old way of checking a node: try every rule from the last to the first.
+     */
+    static IgnoreNode.MatchResult legacy(IgnoreNode node, String path, boolean isDir) {
+        List<IgnoreRule> rules = node.getRules();
+        for (int i = rules.size() - 1; i > -1; i--) {
+            IgnoreRule rule = rules.get(i);
+            if (rule.isMatch(path, isDir)) {
+                return rule.getResult() ? IgnoreNode.MatchResult.IGNORED : IgnoreNode.MatchResult.NOT_IGNORED;
+            }
+        }
+        return IgnoreNode.MatchResult.CHECK_PARENT;
+    }
+
+    static String randomRule(Random random) {
+        StringBuilder rule = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            rule.append('!');
+        }
+        if (random.nextInt(4) == 0) {
+            rule.append('/');
+        }
+        int segments = 1 + random.nextInt(3);
+        for (int i = 0; i < segments; i++) {
+            if (i > 0) {
+                rule.append('/');
+            }
+            rule.append(random.nextBoolean() ? NAMES[random.nextInt(NAMES.length)] : GLOBS[random.nextInt(GLOBS.length)]);
+        }
+        if (random.nextInt(4) == 0) {
+            rule.append('/');
+        }
+        return rule.toString();
+    }
+
+    static String randomPath(Random random) {
+        switch (random.nextInt(20)) {
+            case 0:
+                return "";
+            case 1:
+                return "a//b";
+            case 2:
+                return "a/b/";
+            case 3:
+                return "/" + NAMES[random.nextInt(NAMES.length)];
+        }
+        StringBuilder path = new StringBuilder();
+        int segments = 1 + random.nextInt(4);
+        for (int i = 0; i < segments; i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            path.append(random.nextInt(8) == 0 ? "*" : NAMES[random.nextInt(NAMES.length)]);
+        }
+        return path.toString();
+    }
+
+    @Test
+    public void testMatchesLegacy() throws IOException {
+        Random random = new Random(42);
+        for (int n = 0; n < 500; n++) {
+            IgnoreNode node = new IgnoreNode();
+            int count = 1 + random.nextInt(12);
+            for (int i = 0; i < count; i++) {
+                node.addRule(new IgnoreRule(randomRule(random)));
+            }
+            for (int i = 0; i < 200; i++) {
+                String path = randomPath(random);
+                boolean isDir = random.nextBoolean();
+                assertEquals(String.format("%s %s with rules %s", path, isDir, describe(node)),
+                        legacy(node, path, isDir), node.isIgnored(path, isDir));
+            }
+        }
+    }
+
+    @Test
+    public void testParseRecompiles() throws IOException {
+        IgnoreNode node = new IgnoreNode();
+        node.parse(new ByteArrayInputStream("*.log\n".getBytes()));
+        assertEquals(IgnoreNode.MatchResult.IGNORED, node.isIgnored("a/b.log", false));
+        assertEquals(IgnoreNode.MatchResult.IGNORED, node.isIgnored("a/keep.log", false));
+        node.parse(new ByteArrayInputStream("!keep.log\nbuild/\n".getBytes()));
+        assertEquals(IgnoreNode.MatchResult.NOT_IGNORED, node.isIgnored("a/keep.log", false));
+        assertEquals(IgnoreNode.MatchResult.IGNORED, node.isIgnored("src/build", true));
+        assertEquals(IgnoreNode.MatchResult.CHECK_PARENT, node.isIgnored("src/build", false));
+        assertEquals(IgnoreNode.MatchResult.IGNORED, node.isIgnored("src/build/Main.class", false));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final IgnoreNode node = new IgnoreNode();
+        node.parse(new ByteArrayInputStream("[a-z]*.txt\n!/[!b]*/fo?\n*.o\n/build/\n[[:alpha:]]*~\n".getBytes()));
+        Random random = new Random(7);
+        final List<String> paths = new ArrayList<String>();
+        final List<IgnoreNode.MatchResult> expected = new ArrayList<IgnoreNode.MatchResult>();
+        for (int i = 0; i < 2000; i++) {
+            String path = randomPath(random);
+            paths.add(path);
+            expected.add(legacy(node, path, false));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < 8; t++) {
+            results.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int wrong = 0;
+                    for (int n = 0; n < 20; n++) {
+                        for (int i = 0; i < paths.size(); i++) {
+                            String path = paths.get(i);
+                            if (node.isIgnored(path, false) != expected.get(i)) {
+                                wrong++;
+                            }
+                            if (legacy(node, path, false) != expected.get(i)) {
+                                wrong++;
+                            }
+                        }
+                    }
+                    return wrong;
+                }
+            }));
+        }
+        pool.shutdown();
+        for (Future<Integer> result : results) {
+            assertEquals("Threads sharing a node should all get the same answers.", 0, (int) result.get());
+        }
+    }
+
+    private static String describe(IgnoreNode node) {
+        StringBuilder sb = new StringBuilder();
+        for (IgnoreRule rule : node.getRules()) {
+            sb.append(String.format("[%s%s%s] ", rule.getNegation() ? "!" : "", rule.getPattern(), rule.dirOnly() ? "/" : ""));
+        }
+        return sb.toString();
+    }
+}
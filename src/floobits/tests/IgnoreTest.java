@@ -1,6 +1,7 @@
 package floobits.tests;
 
 import floobits.common.Ignore;
+import floobits.common.IgnoreCache;
 import floobits.common.Utils;
 import floobits.common.interfaces.IFile;
 import org.junit.After;
@@ -9,6 +10,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import static org.junit.Assert.*;
 
@@ -28,10 +31,13 @@ public class IgnoreTest {
 
     @Test
     public void testCompareTo(){
-        Ignore dummyIgnore = Ignore.BuildIgnore(new MockIFile(""));
-        ignore.size = 100;
-        dummyIgnore.size = 200;
-        assertEquals("Ignore's compareTo should return the difference.", ignore.compareTo(dummyIgnore), dummyIgnore.size - ignore.size);
+        Ignore small = Ignore.BuildIgnore(new MockIFile(
+                MockIFile.mockFileFromJSON("{\"children\": {\"a.txt\": {\"size\": 100}}}"), "/small"));
+        Ignore big = Ignore.BuildIgnore(new MockIFile(
+                MockIFile.mockFileFromJSON("{\"children\": {\"a.txt\": {\"size\": 200}}}"), "/big"));
+        assertEquals(100, small.getSize());
+        assertEquals("Ignore's compareTo should return the difference.", big.getSize() - small.getSize(),
+                small.compareTo(big));
     }
 
     @Test
@@ -110,11 +116,111 @@ public class IgnoreTest {
         t1 = new MockIFile(mn.children.get("bar"), "/foo/bar");
         assertTrue("Should have bar in upload files.", uploadData.paths.contains(t1.getPath()));
         assertEquals("There should be one directory that's too big.", 1, uploadData.bigStuff.size());
-        int bigFileSize = uploadData.bigStuff.get("/foo/toobig");
+        long bigFileSize = uploadData.bigStuff.get("/foo/toobig");
         assertEquals("The big file should be listed in the too big list", 100000, bigFileSize);
         t1 = new MockIFile(mn.children.get("toobig").children.get("hugefile.txt"), "/foo/toobig/hugefile.txt");
         assertFalse("Should not have hugefile in upload files.", uploadData.paths.contains(t1.getPath()));
         t1 = new MockIFile(mn.children.get("toobig").children.get("nesteddir").children.get("smallnested.txt"), "/foo/toobig/nesteddir/smallnested.txt");
         assertFalse("Should not have nested dir from huge dir in upload files.", uploadData.paths.contains(t1.getPath()));
     }
+
+    @Test
+    public void testIncrementalUpdates() throws IOException {
+        URL data = IgnoreTest.class.getResource("ignore_file_test.json");
+        MockIFile.MockNode mn = MockIFile.mockFileFromJSON(data);
+        Ignore i = Ignore.BuildIgnore(new MockIFile(mn, "/foo"));
+        assertTrue("coke.txt should be shared.", uploadPaths(i).contains("/foo/.bar/stuff/coke.txt"));
+
+        mn.children.get(".bar").children.get(".flooignore").contents = "coke.txt";
+        i.rebuild("/foo/.bar");
+        HashSet<String> paths = uploadPaths(i);
+        assertFalse("Changed ignore file should ignore coke.txt.", paths.contains("/foo/.bar/stuff/coke.txt"));
+        assertTrue("Changed ignore file should stop ignoring pepsi.txt.", paths.contains("/foo/.bar/stuff/pepsi.txt"));
+        assertTrue("Rebuilding a directory shouldn't touch the rest of the tree.", paths.contains("/foo/bar"));
+
+        MockIFile.MockNode created = MockIFile.mockFileFromJSON("{\"contents\": \"new\"}");
+        mn.children.put("new.txt", created);
+        i.add(new MockIFile(created, "/foo/new.txt"));
+        i.add(new MockIFile(created, "/foo/.hg/new.txt"));
+        i.remove("/foo/bar");
+        paths = uploadPaths(i);
+        assertTrue("Created file should be shared.", paths.contains("/foo/new.txt"));
+        assertFalse("Created file in an ignored directory should not be shared.", paths.contains("/foo/.hg/new.txt"));
+        assertFalse("Deleted file should not be shared.", paths.contains("/foo/bar"));
+
+        // Like the VFS, tell it about the delete while the file is still there.
+        i.remove("/foo/.bar/.flooignore");
+        mn.children.get(".bar").children.remove(".flooignore");
+        paths = uploadPaths(i);
+        assertTrue("Deleting an ignore file should share what it ignored.", paths.contains("/foo/.bar/stuff/coke.txt"));
+        assertTrue(paths.contains("/foo/.bar/stuff/pepsi.txt"));
+        assertFalse("The deleted ignore file should be gone.", paths.contains("/foo/.bar/.flooignore"));
+    }
+
+    @Test
+    public void testCachedVerdicts() throws IOException {
+        URL data = IgnoreTest.class.getResource("ignore_file_test.json");
+        MockIFile.MockNode mn = MockIFile.mockFileFromJSON(data);
+        Ignore i = Ignore.BuildIgnore(new MockIFile(mn, "/foo"));
+        MockIFile.MockNode stuff = mn.children.get(".bar").children.get("stuff");
+        IFile coke = new MockIFile(stuff.children.get("coke.txt"), "/foo/.bar/stuff/coke.txt");
+        assertFalse(i.isIgnored(coke, ".bar/stuff/coke.txt"));
+        assertFalse(i.isIgnored(coke, ".bar/stuff/coke.txt"));
+        assertEquals("Second check should come from the cache.", 1, i.getCache().getHits());
+
+        mn.children.get(".bar").children.get(".flooignore").contents = "coke.txt";
+        i.rebuild("/foo/.bar");
+        assertTrue("Changing an ignore file should drop cached verdicts under it.",
+                i.isIgnored(coke, ".bar/stuff/coke.txt"));
+        assertEquals(1, i.getCache().getHits());
+    }
+
+    @Test
+    public void testVerdictsFromDuringAChangeArentCached() {
+        IgnoreCache cache = new IgnoreCache();
+        long before = cache.getGeneration();
+        cache.beginChange();
+        cache.put("a.txt", true, before);
+        assertNull("A verdict from before a change shouldn't be cached.", cache.get("a.txt"));
+        long during = cache.getGeneration();
+        cache.put("a.txt", true, during);
+        assertNull("A verdict from during a change shouldn't be cached.", cache.get("a.txt"));
+        cache.endChange();
+        cache.put("a.txt", true, cache.getGeneration());
+        assertEquals(Boolean.TRUE, cache.get("a.txt"));
+    }
+
+    @Test
+    public void testSizeIndex() throws IOException {
+        URL data = IgnoreTest.class.getResource("ignore_file_test.json");
+        MockIFile.MockNode mn = MockIFile.mockFileFromJSON(data);
+        Ignore i = Ignore.BuildIgnore(new MockIFile(mn, "/foo"));
+        long total = i.getTotalSize();
+        assertEquals("Everything should fit.", 0, i.getBigStuff(total).size());
+        assertEquals("/foo/toobig", i.getBigStuff(total - 1).keySet().iterator().next());
+
+        MockIFile.MockNode big = MockIFile.mockFileFromJSON("{\"size\": 200000}");
+        MockIFile.MockNode stuff = mn.children.get(".bar").children.get("stuff");
+        stuff.children.put("big.txt", big);
+        i.add(new MockIFile(big, "/foo/.bar/stuff/big.txt"));
+        assertEquals(total + 200000, i.getTotalSize());
+        HashMap<String, Long> bigStuff = i.getBigStuff(1000);
+        assertEquals("New file should make its directory the biggest.", (Long) 200010L, bigStuff.get("/foo/.bar/stuff"));
+        assertEquals(2, bigStuff.size());
+
+        stuff.children.remove("big.txt");
+        i.remove("/foo/.bar/stuff/big.txt");
+        i.remove("/foo/toobig");
+        assertEquals(total - 100010, i.getTotalSize());
+        assertEquals(0, i.getBigStuff(1000).size());
+    }
+
+    private static HashSet<String> uploadPaths(Ignore i) {
+        return i.getUploadData(Integer.MAX_VALUE, new Utils.FileProcessor<String>() {
+            @Override
+            public String call(IFile file) {
+                return file.getPath();
+            }
+        }).paths;
+    }
 }
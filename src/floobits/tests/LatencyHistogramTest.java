@@ -0,0 +1,47 @@
+package floobits.tests;
+
+import floobits.common.LatencyHistogram;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(0.99), 0);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(MS / 100);
+        }
+        histogram.record(3 * MS);
+        histogram.record(100 * MS);
+        assertEquals(100, histogram.getCount());
+        // Percentiles are the upper bound of their bucket.
+        assertEquals(0.064, histogram.getPercentileMillis(0.5), 0.0001);
+        assertEquals(4.096, histogram.getPercentileMillis(0.99), 0.0001);
+        assertEquals(100, histogram.getPercentileMillis(1), 0.0001);
+        assertEquals(100, histogram.getMaxMillis(), 0.0001);
+        assertEquals((98 * 0.01 + 103) / 100, histogram.getMeanMillis(), 0.0001);
+    }
+
+    @Test
+    public void testOverflowAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(120 * 1000 * MS);
+        Map<String, Object> map = histogram.toMap();
+        @SuppressWarnings("unchecked")
+        Map<String, Long> buckets = (Map<String, Long>) map.get("buckets_ms");
+        assertEquals(Long.valueOf(1), buckets.get("<=0.064"));
+        assertEquals(Long.valueOf(1), buckets.get(">33554.432"));
+        assertEquals(120000, histogram.getPercentileMillis(0.99), 0.0001);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMillis(), 0);
+        assertTrue(((Map) histogram.toMap().get("buckets_ms")).isEmpty());
+    }
+}
@@ -0,0 +1,171 @@
+package floobits.tests;
+
+import floobits.common.EditorEventHandler;
+import floobits.common.RunLater;
+import floobits.common.interfaces.IContext;
+import floobits.common.protocol.FlooUser;
+import io.fletty.channel.nio.NioEventLoopGroup;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A context with a real event loop for setTimeout. Work for the UI threads runs right away on the calling thread,
+ * and everything else does nothing. Call shutdown when done with it.
+ */
+public class MockContext extends IContext {
+
+    public MockContext() {
+        loopGroup = new NioEventLoopGroup(1);
+    }
+
+    @Override
+    protected void shareProjectDialog(String name, List<String> orgs, String host, boolean _private_, String projectPath) {
+    }
+
+    @Override
+    protected String selectAccount(String[] keys) {
+        return null;
+    }
+
+    @Override
+    public Object getActualContext() {
+        return null;
+    }
+
+    @Override
+    public void loadFloobitsWindow() {
+    }
+
+    @Override
+    public void flashMessage(String message) {
+    }
+
+    @Override
+    public void warnMessage(String message) {
+    }
+
+    @Override
+    public void statusMessage(String message) {
+    }
+
+    @Override
+    public void progressMessage(String message) {
+    }
+
+    @Override
+    public void errorMessage(String message) {
+    }
+
+    @Override
+    public boolean confirmDialog(String message) {
+        return true;
+    }
+
+    @Override
+    public void chatStatusMessage(String message) {
+    }
+
+    @Override
+    public void chatErrorMessage(String message) {
+    }
+
+    @Override
+    public void chat(String username, String msg, Date messageDate) {
+    }
+
+    @Override
+    public void setupFloobitsWindow() {
+    }
+
+    @Override
+    public void openFloobitsWindow() {
+    }
+
+    @Override
+    public void closeFloobitsWindow() {
+    }
+
+    @Override
+    public void toggleFloobitsWindow() {
+    }
+
+    @Override
+    public void listenToEditor(EditorEventHandler editorEventHandler) {
+    }
+
+    @Override
+    public void setListener(boolean b) {
+    }
+
+    @Override
+    public void setSaving(boolean b) {
+    }
+
+    @Override
+    public void mainThread(Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public void readThread(String event, Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public void writeThread(String event, Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public void dialog(String title, String body, RunLater<Boolean> runLater) {
+    }
+
+    @Override
+    public void dialogDisconnect(int tooMuch, int howMany) {
+    }
+
+    @Override
+    public void dialogPermsRequest(String username, RunLater<String> perms) {
+    }
+
+    @Override
+    public boolean dialogTooBig(HashMap<String, Long> bigStuff) {
+        return true;
+    }
+
+    @Override
+    public void dialogResolveConflicts(Runnable stompLocal, Runnable stompRemote, boolean readOnly, Runnable flee,
+                                       String[] conflictedPathsArray, String[] connections) {
+    }
+
+    @Override
+    public boolean isAccountAutoGenerated() {
+        return false;
+    }
+
+    @Override
+    public void notifyCompleteSignUp() {
+    }
+
+    @Override
+    public void addUser(FlooUser user) {
+    }
+
+    @Override
+    public void removeUser(FlooUser user) {
+    }
+
+    @Override
+    public void followUser() {
+    }
+
+    @Override
+    public void updateFollowing() {
+    }
+
+    @Override
+    public void connected() {
+    }
+}
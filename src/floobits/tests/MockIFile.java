@@ -155,6 +155,11 @@ public class MockIFile extends IFile {
         return contents.getBytes();
     }
 
+    @Override
+    public String decode(byte[] bytes) {
+        return new String(bytes);
+    }
+
     @Override
     public boolean setBytes(byte[] bytes) {
         return false;
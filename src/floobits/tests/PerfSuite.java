@@ -0,0 +1,395 @@
+package floobits.tests;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import floobits.common.Ignore;
+import floobits.common.RunLater;
+import floobits.common.Utils;
+import floobits.common.interfaces.IFile;
+import floobits.common.jgit.ignore.IgnoreNode;
+import floobits.common.jgit.ignore.IgnoreRule;
+import floobits.common.protocol.RoomInfoReader;
+import floobits.common.protocol.json.receive.RoomInfoBuf;
+import floobits.common.protocol.json.send.RoomInfoResponse;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Performance suite for ignore processing on synthetic MockIFile trees: a wide one, a deep one and one with a few
+ * hundred rules in its root .gitignore. Every directory has its own .gitignore. It also times line ending
+ * normalization on generated source text, with the regex we used to use as a reference, and parsing a big
+ * room_info with RoomInfoReader against building the whole tree first. Rule matching is timed with the compiled
+ * matcher and one rule at a time, like IgnoreNode used to.
+ *
+ * Each benchmark runs warmup iterations and then measured ones, and results are written as JSON so runs can be
+ * diffed. Passing a previous results file prints the change for every benchmark.
+ *
+ * Run with: java floobits.tests.PerfSuite [results.json] [baseline.json]
+ */
+public class PerfSuite {
+    static final int WARMUP_ITERATIONS = 3;
+    static final int MEASURED_ITERATIONS = 5;
+    static final Pattern NEW_LINE = Pattern.compile("\\r\\n?", Pattern.DOTALL);
+
+    static class Result {
+        String name;
+        long opsPerIteration;
+        double meanNsPerOp;
+        double minNsPerOp;
+        double maxNsPerOp;
+        double stddevNsPerOp;
+    }
+
+    static class Results {
+        String javaVersion = System.getProperty("java.version");
+        int cores = Runtime.getRuntime().availableProcessors();
+        int ignoreThreads = Ignore.threads;
+        long timestamp = System.currentTimeMillis();
+        List<Result> results = new ArrayList<Result>();
+    }
+
+    interface Benchmark {
+        /**
+         * @return how many operations were done, to get the time per operation.
+         */
+        long run();
+    }
+
+    static class Tree {
+        final String name;
+        final MockIFile.MockNode node;
+        final MockIFile root;
+        final List<IFile> files = new ArrayList<IFile>();
+        final List<String> relPaths = new ArrayList<String>();
+
+        Tree(String name, int fanout, int depth, int filesPerDir, int rootRules) {
+            this.name = name;
+            StringBuilder json = new StringBuilder();
+            appendDir(json, fanout, depth, filesPerDir, rootRules);
+            node = MockIFile.mockFileFromJSON(json.toString());
+            root = new MockIFile(node, "/project");
+            collect(root);
+        }
+
+        private void collect(IFile dir) {
+            for (IFile file : dir.getChildren()) {
+                files.add(file);
+                relPaths.add(Utils.toProjectRelPath(file.getPath(), root.getPath()));
+                if (file.isDirectory()) {
+                    collect(file);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String output = args.length > 0 ? args[0] : "ignore-perf.json";
+        String baseline = args.length > 1 ? args[1] : null;
+        Results results = new Results();
+        List<Tree> trees = new ArrayList<Tree>();
+        trees.add(new Tree("wide", 30, 2, 30, 0));
+        trees.add(new Tree("deep", 2, 10, 10, 0));
+        trees.add(new Tree("globs", 8, 3, 20, 300));
+
+        for (final Tree tree : trees) {
+            results.results.add(measure(String.format("BuildIgnore/%s", tree.name), new Benchmark() {
+                @Override
+                public long run() {
+                    Ignore.BuildIgnore(tree.root);
+                    return 1;
+                }
+            }));
+            final int threads = Ignore.threads;
+            results.results.add(measure(String.format("BuildIgnore.1 thread/%s", tree.name), new Benchmark() {
+                @Override
+                public long run() {
+                    Ignore.threads = 1;
+                    try {
+                        Ignore.BuildIgnore(tree.root);
+                    } finally {
+                        Ignore.threads = threads;
+                    }
+                    return 1;
+                }
+            }));
+            final Ignore ignore = Ignore.BuildIgnore(tree.root);
+            results.results.add(measure(String.format("isIgnored.uncached/%s", tree.name), new Benchmark() {
+                @Override
+                public long run() {
+                    ignore.getCache().invalidate("");
+                    return isIgnored(ignore, tree);
+                }
+            }));
+            results.results.add(measure(String.format("isIgnored.cached/%s", tree.name), new Benchmark() {
+                @Override
+                public long run() {
+                    return isIgnored(ignore, tree);
+                }
+            }));
+            results.results.add(measure(String.format("getUploadData/%s", tree.name), new Benchmark() {
+                @Override
+                public long run() {
+                    ignore.getUploadData(1024 * 1024, new Utils.FileProcessor<String>() {
+                        @Override
+                        public String call(IFile file) {
+                            return file.getPath();
+                        }
+                    });
+                    return 1;
+                }
+            }));
+        }
+
+        Tree globs = trees.get(trees.size() - 1);
+        final List<String> paths = globs.relPaths;
+        final IgnoreNode node = new IgnoreNode();
+        node.parse(new ByteArrayInputStream(rules(300).getBytes()));
+        final List<IgnoreRule> rules = node.getRules();
+        results.results.add(measure("IgnoreRule.isMatch/300 rules", new Benchmark() {
+            @Override
+            public long run() {
+                long ops = 0;
+                for (String path : paths) {
+                    for (IgnoreRule rule : rules) {
+                        rule.isMatch(path, false);
+                        ops++;
+                    }
+                }
+                return ops;
+            }
+        }));
+        results.results.add(measure("IgnoreNode.isIgnored/300 rules", new Benchmark() {
+            @Override
+            public long run() {
+                for (String path : paths) {
+                    node.isIgnored(path, false);
+                }
+                return paths.size();
+            }
+        }));
+        results.results.add(measure("IgnoreNode one rule at a time/300 rules", new Benchmark() {
+            @Override
+            public long run() {
+                for (String path : paths) {
+                    IgnoreMatcherTest.legacy(node, path, false);
+                }
+                return paths.size();
+            }
+        }));
+
+        newLines(results, "unix", sourceText(false));
+        newLines(results, "windows", sourceText(true));
+        roomInfo(results, 50000);
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        try {
+            gson.toJson(results, writer);
+        } finally {
+            writer.close();
+        }
+        System.out.println(String.format("Wrote %s", output));
+        if (baseline != null) {
+            compare(gson, baseline, results);
+        }
+    }
+
+    static void newLines(Results results, String name, final List<String> corpus) {
+        results.results.add(measure(String.format("normalizeNewLines/%s", name), new Benchmark() {
+            @Override
+            public long run() {
+                long chars = 0;
+                for (String text : corpus) {
+                    chars += Utils.normalizeNewLines(text).length();
+                }
+                return chars;
+            }
+        }));
+        results.results.add(measure(String.format("regex newlines/%s", name), new Benchmark() {
+            @Override
+            public long run() {
+                long chars = 0;
+                for (String text : corpus) {
+                    chars += NEW_LINE.matcher(text).replaceAll("\n").length();
+                }
+                return chars;
+            }
+        }));
+    }
+
+    static void roomInfo(Results results, final int count) {
+        StringBuilder builder = new StringBuilder("{\"name\": \"room_info\", \"user_id\": \"1\", \"perms\": [\"patch\"], \"bufs\": {");
+        for (int i = 1; i <= count; i++) {
+            if (i > 1) {
+                builder.append(", ");
+            }
+            builder.append(String.format("\"%d\": {\"id\": %d, \"path\": \"src/some/package/File%d.java\", " +
+                    "\"md5\": \"d41d8cd98f00b204e9800998ecf8427e\", \"encoding\": \"utf8\"}", i, i, i));
+        }
+        builder.append("}}");
+        final String msg = builder.toString();
+        results.results.add(measure(String.format("room_info tree/%d buffers", count), new Benchmark() {
+            @Override
+            public long run() {
+                JsonObject obj = (JsonObject) new JsonParser().parse(msg);
+                RoomInfoResponse ri = new Gson().fromJson(obj, (Type) RoomInfoResponse.class);
+                return ri.bufs.size();
+            }
+        }));
+        results.results.add(measure(String.format("RoomInfoReader.read/%d buffers", count), new Benchmark() {
+            @Override
+            public long run() {
+                final long[] bufs = new long[1];
+                try {
+                    RoomInfoReader.read(msg, new RunLater<RoomInfoBuf>() {
+                        @Override
+                        public void run(RoomInfoBuf b) {
+                            bufs[0]++;
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return bufs[0];
+            }
+        }));
+    }
+
+    /**
+     * @return a few hundred files of Java-like text, a few megabytes in all.
+     */
+    static List<String> sourceText(boolean windows) {
+        String newLine = windows ? "\r\n" : "\n";
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int line = 0; line < 400; line++) {
+                text.append(String.format("        int value%d = compute(%d, \"%s\");%s", line, i * line,
+                        line % 3 == 0 ? "" : "some string", newLine));
+            }
+            files.add(text.toString());
+        }
+        return files;
+    }
+
+    static long isIgnored(Ignore ignore, Tree tree) {
+        for (int i = 0; i < tree.files.size(); i++) {
+            ignore.isIgnored(tree.files.get(i), tree.relPaths.get(i));
+        }
+        return tree.files.size();
+    }
+
+    static Result measure(String name, Benchmark benchmark) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            benchmark.run();
+        }
+        double[] nsPerOp = new double[MEASURED_ITERATIONS];
+        long ops = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            ops = benchmark.run();
+            nsPerOp[i] = (System.nanoTime() - start) / (double) Math.max(1, ops);
+        }
+        Result result = new Result();
+        result.name = name;
+        result.opsPerIteration = ops;
+        result.minNsPerOp = Double.MAX_VALUE;
+        double sum = 0;
+        for (double value : nsPerOp) {
+            sum += value;
+            result.minNsPerOp = Math.min(result.minNsPerOp, value);
+            result.maxNsPerOp = Math.max(result.maxNsPerOp, value);
+        }
+        result.meanNsPerOp = sum / nsPerOp.length;
+        double squares = 0;
+        for (double value : nsPerOp) {
+            squares += (value - result.meanNsPerOp) * (value - result.meanNsPerOp);
+        }
+        result.stddevNsPerOp = Math.sqrt(squares / nsPerOp.length);
+        System.out.println(String.format("%-36s %14.1f ns/op (+/- %.1f)", name, result.meanNsPerOp,
+                result.stddevNsPerOp));
+        return result;
+    }
+
+    static void compare(Gson gson, String baseline, Results results) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(baseline), "UTF-8");
+        Results previous;
+        try {
+            previous = gson.fromJson(reader, Results.class);
+        } finally {
+            reader.close();
+        }
+        HashMap<String, Result> byName = new HashMap<String, Result>();
+        for (Result result : previous.results) {
+            byName.put(result.name, result);
+        }
+        System.out.println(String.format("Compared to %s:", baseline));
+        for (Result result : results.results) {
+            Result before = byName.get(result.name);
+            if (before == null) {
+                System.out.println(String.format("%-36s new", result.name));
+                continue;
+            }
+            double change = (result.meanNsPerOp - before.meanNsPerOp) * 100 / before.meanNsPerOp;
+            System.out.println(String.format("%-36s %+7.1f%%", result.name, change));
+        }
+    }
+
+    static String rules(int count) {
+        StringBuilder rules = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            switch (i % 6) {
+                case 0:
+                    rules.append(String.format("name%d\n", i));
+                    break;
+                case 1:
+                    rules.append(String.format("*.ext%d\n", i));
+                    break;
+                case 2:
+                    rules.append(String.format("/dir%d/sub%d/\n", i % 8, i));
+                    break;
+                case 3:
+                    rules.append(String.format("/dir%d/*.gen%d\n", i % 8, i));
+                    break;
+                case 4:
+                    rules.append(String.format("[a-z]tmp%d*\n", i));
+                    break;
+                default:
+                    rules.append(String.format("!keep%d*\n", i));
+            }
+        }
+        return rules.toString();
+    }
+
+    private static void appendDir(StringBuilder json, int fanout, int depth, int files, int rootRules) {
+        json.append("{\"children\": {");
+        String gitignore = "*.log\nbuild/\n/generated*\n!keep.log\n";
+        if (rootRules > 0) {
+            gitignore += rules(rootRules);
+        }
+        json.append(String.format("\".gitignore\": {\"contents\": \"%s\"}", gitignore.replace("\n", "\\n")));
+        for (int i = 0; i < files; i++) {
+            String name = i % 10 == 0 ? String.format("file%d.log", i) : String.format("File%d.java", i);
+            if (i % 7 == 0) {
+                name = String.format("File%d.ext%d", i, i % 60);
+            }
+            json.append(String.format(", \"%s\": {\"size\": 1000}", name));
+        }
+        if (depth > 0) {
+            for (int i = 0; i < fanout; i++) {
+                json.append(String.format(", \"dir%d\": ", i));
+                appendDir(json, fanout, depth - 1, files, 0);
+            }
+            json.append(", \"build\": ");
+            appendDir(json, 0, 0, files, 0);
+        }
+        json.append("}}");
+    }
+}
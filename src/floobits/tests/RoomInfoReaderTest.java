@@ -0,0 +1,48 @@
+package floobits.tests;
+
+import floobits.common.RunLater;
+import floobits.common.protocol.RoomInfoReader;
+import floobits.common.protocol.json.receive.RoomInfoBuf;
+import floobits.common.protocol.json.send.RoomInfoResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RoomInfoReaderTest {
+    private static final String ROOM_INFO = "{\"bufs\": {\"1\": {\"id\": 1, \"path\": \"a.txt\", \"md5\": \"abc\", " +
+            "\"encoding\": \"utf8\"}, \"2\": {\"id\": 2, \"path\": \"b/c.png\", \"md5\": \"def\", \"encoding\": \"base64\"}}, " +
+            "\"perms\": [\"patch\", \"get_buf\"], \"user_id\": \"7\", \"users\": {\"7\": {\"user_id\": 7, \"username\": \"bob\"}}, " +
+            "\"name\": \"room_info\", \"max_size\": 1000}";
+
+    @Test
+    public void testPeekName() {
+        assertEquals("Name should be found after other fields.", "room_info", RoomInfoReader.peekName(ROOM_INFO));
+        assertEquals("Name should be found first.", "patch", RoomInfoReader.peekName("{\"name\": \"patch\", \"id\": 1}"));
+        assertNull("No name means null.", RoomInfoReader.peekName("{\"id\": 1}"));
+        assertNull("Broken json means null.", RoomInfoReader.peekName("{\"id\": "));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        final List<RoomInfoBuf> bufs = new ArrayList<RoomInfoBuf>();
+        RoomInfoResponse ri = RoomInfoReader.read(ROOM_INFO, new RunLater<RoomInfoBuf>() {
+            @Override
+            public void run(RoomInfoBuf b) {
+                bufs.add(b);
+            }
+        });
+        assertEquals("Every buffer should be handed off.", 2, bufs.size());
+        assertEquals("a.txt", bufs.get(0).path);
+        assertEquals((Integer) 2, bufs.get(1).id);
+        assertEquals("base64", bufs.get(1).encoding);
+        assertNull("Buffers shouldn't be kept in the response.", ri.bufs);
+        assertEquals("7", ri.user_id);
+        assertEquals((Integer) 1000, ri.max_size);
+        assertEquals("bob", ri.users.get(7).username);
+        assertArrayEquals(new String[]{"patch", "get_buf"}, ri.perms);
+    }
+}
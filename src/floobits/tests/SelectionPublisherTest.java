@@ -0,0 +1,99 @@
+package floobits.tests;
+
+import floobits.common.EditorEventHandler;
+import floobits.common.RunLater;
+import floobits.common.SelectionPublisher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SelectionPublisherTest {
+    private final int defaultMaxPerSecond = SelectionPublisher.maxPerSecond;
+    private final MockContext context = new MockContext();
+    // "path ranges following" for each highlight we tried to send.
+    private final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger samples = new AtomicInteger();
+    private volatile boolean accept = true;
+    private volatile int caret = 1;
+    private SelectionPublisher publisher;
+
+    @Before
+    public void setUp() {
+        // No waiting, so every change is flushed right away on this thread.
+        SelectionPublisher.maxPerSecond = 0;
+        EditorEventHandler editor = new EditorEventHandler(context, null, null, null) {
+            @Override
+            public boolean changeSelection(String path, ArrayList<ArrayList<Integer>> textRanges, boolean following) {
+                attempts.add(String.format("%s %s %s", path, textRanges, following));
+                return accept;
+            }
+        };
+        publisher = new SelectionPublisher(context, editor, new RunLater<SelectionPublisher.Selection>() {
+            @Override
+            public void run(SelectionPublisher.Selection selection) {
+                samples.incrementAndGet();
+                selection.path = "/a";
+                selection.add(caret, caret);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        SelectionPublisher.maxPerSecond = defaultMaxPerSecond;
+        context.shutdown();
+    }
+
+    @Test
+    public void testIdenticalSamplesArentResent() {
+        publisher.changed(false);
+        publisher.changed(false);
+        caret = 2;
+        publisher.changed(false);
+        publisher.changed(false);
+        assertEquals(Arrays.asList("/a [[1, 1]] false", "/a [[2, 2]] false"), attempts);
+        assertEquals(4, samples.get());
+    }
+
+    @Test
+    public void testScrollThatBecomesAMoveIsResent() {
+        publisher.changed(true);
+        publisher.changed(false);
+        // Followers already moved there, so scrolling back to it again is nothing new.
+        publisher.changed(true);
+        assertEquals(Arrays.asList("/a [[1, 1]] true", "/a [[1, 1]] false"), attempts);
+    }
+
+    @Test
+    public void testFailedSendIsRetried() {
+        accept = false;
+        publisher.changed(false);
+        accept = true;
+        publisher.changed(false);
+        publisher.changed(false);
+        assertEquals(Arrays.asList("/a [[1, 1]] false", "/a [[1, 1]] false"), attempts);
+    }
+
+    @Test
+    public void testOneFlushPerInterval() throws InterruptedException {
+        SelectionPublisher.maxPerSecond = 5;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            caret = i;
+            publisher.changed(false);
+        }
+        assertTrue("The burst has to fit in one interval for this test.", System.currentTimeMillis() - start < 150);
+        assertEquals("Only the first change is flushed right away.", 1, samples.get());
+        Thread.sleep(400);
+        assertEquals("The rest of the burst goes out together in the next interval.", 2, samples.get());
+        assertEquals(Arrays.asList("/a [[0, 0]] false", "/a [[9, 9]] false"), attempts);
+    }
+}
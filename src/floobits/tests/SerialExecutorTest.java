@@ -0,0 +1,172 @@
+package floobits.tests;
+
+import floobits.common.RunLater;
+import floobits.common.SerialExecutor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SerialExecutorTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+    // Stands in for the write thread, which turns are handed to.
+    private final ExecutorService ui = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+        ui.shutdownNow();
+    }
+
+    @Test
+    public void testOrderAndExclusion() throws InterruptedException {
+        final int producers = 4;
+        final int tasks = 2000;
+        final List<SerialExecutor> executors = new ArrayList<SerialExecutor>();
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        final AtomicInteger[] running = new AtomicInteger[3];
+        for (int i = 0; i < running.length; i++) {
+            executors.add(new SerialExecutor(pool));
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            running[i] = new AtomicInteger();
+        }
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers * tasks);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < tasks; i++) {
+                        final int e = i % running.length;
+                        final int value = producer * tasks + i;
+                        final Runnable body = new Runnable() {
+                            @Override
+                            public void run() {
+                                if (running[e].incrementAndGet() != 1) {
+                                    overlaps.incrementAndGet();
+                                }
+                                seen.get(e).add(value);
+                                running[e].decrementAndGet();
+                                done.countDown();
+                            }
+                        };
+                        if (i % 2 == 0) {
+                            executors.get(e).execute(body);
+                            continue;
+                        }
+                        executors.get(e).submit(new RunLater<SerialExecutor.Turn>() {
+                            @Override
+                            public void run(final SerialExecutor.Turn turn) {
+                                ui.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        turn.run(body);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (List<Integer> values : seen) {
+            // Each producer's tasks for one executor run in the order it added them.
+            int[] last = new int[producers];
+            for (int i = 0; i < last.length; i++) {
+                last[i] = -1;
+            }
+            for (Integer value : values) {
+                int producer = value / tasks;
+                assertTrue(value > last[producer]);
+                last[producer] = value;
+            }
+        }
+    }
+
+    @Test
+    public void testReentrantAndSkip() throws InterruptedException {
+        final SerialExecutor executor = new SerialExecutor(pool);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit(new RunLater<SerialExecutor.Turn>() {
+            @Override
+            public void run(SerialExecutor.Turn turn) {
+                order.add("skipped");
+                turn.skip();
+                turn.skip();
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add("inner");
+                    }
+                });
+                order.add("outer");
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("last");
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("skipped", "inner", "outer", "last"), order);
+    }
+
+    @Test
+    public void testTryExecuteWhileBusy() {
+        // Runs everything on this thread, so it's clear when the executor is busy.
+        final SerialExecutor executor = new SerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final SerialExecutor.Turn[] held = new SerialExecutor.Turn[1];
+        executor.submit(new RunLater<SerialExecutor.Turn>() {
+            @Override
+            public void run(SerialExecutor.Turn turn) {
+                held[0] = turn;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("queued");
+            }
+        });
+        assertFalse(executor.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("busy");
+            }
+        }));
+        held[0].skip();
+        assertTrue(executor.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("idle");
+            }
+        }));
+        assertEquals(Arrays.asList("queued", "idle"), order);
+    }
+}
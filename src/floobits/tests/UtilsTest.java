@@ -0,0 +1,35 @@
+package floobits.tests;
+
+import floobits.common.Utils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class UtilsTest {
+
+    @Test
+    public void testNormalizeNewLinesWithoutCarriageReturns() {
+        String text = "public class Foo {\n}\n";
+        assertSame("Text without carriage returns should not be copied.", text, Utils.normalizeNewLines(text));
+        assertSame("Empty text should not be copied.", "", Utils.normalizeNewLines(""));
+    }
+
+    @Test
+    public void testNormalizeNewLines() {
+        assertEquals("Windows line endings should become \\n.", "a\nb\n", Utils.normalizeNewLines("a\r\nb\r\n"));
+        assertEquals("Old Mac line endings should become \\n.", "a\nb\n", Utils.normalizeNewLines("a\rb\r"));
+        assertEquals("Mixed line endings should all become \\n.", "a\n\nb\nc", Utils.normalizeNewLines("a\r\r\nb\nc"));
+        assertEquals("A lone carriage return should become \\n.", "\n", Utils.normalizeNewLines("\r"));
+        assertEquals("\\r\\r\\n is two line breaks.", "\n\n", Utils.normalizeNewLines("\r\r\n"));
+    }
+
+    @Test
+    public void testUtf8Length() throws Exception {
+        String[] samples = new String[]{"", "plain ascii", "caf\u00e9", "\u65e5\u672c\u8a9e", "\ud83d\ude00 emoji",
+                "lone \ud83d surrogate"};
+        for (String sample : samples) {
+            assertEquals(sample, sample.getBytes("UTF-8").length, Utils.utf8Length(sample));
+        }
+    }
+}
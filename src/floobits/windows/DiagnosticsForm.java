@@ -0,0 +1,130 @@
+package floobits.windows;
+
+import com.intellij.openapi.ide.CopyPasteManager;
+import floobits.common.Constants;
+import floobits.common.EditorScheduler;
+import floobits.common.EditorStats;
+import floobits.common.IOExecutor;
+import floobits.common.LatencyHistogram;
+import floobits.impl.ContextImpl;
+import floobits.utilities.Flog;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Shows how long editor work has been waiting and running, by lane or thread and event. It refreshes every second
+ * while it's visible, and can copy or save everything as JSON for bug reports.
+ */
+public class DiagnosticsForm {
+    private static final String[] COLUMNS = new String[]{"Where", "Event", "Count", "Wait p50", "Wait p99",
+            "Wait max", "Lock p99", "Run p50", "Run p99", "Run max"};
+    private final ContextImpl context;
+    private JPanel panel;
+    private JLabel summary;
+    private JButton copyButton;
+    private JButton saveButton;
+    private JButton resetButton;
+    private JTable table;
+    private final DefaultTableModel model = new DefaultTableModel(COLUMNS, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    private final Timer timer = new Timer(1000, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            refresh();
+        }
+    });
+
+    public DiagnosticsForm(final ContextImpl context) {
+        this.context = context;
+        table.setModel(model);
+        copyButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                CopyPasteManager.getInstance().setContents(new StringSelection(context.editor.toJson()));
+                context.flashMessage("Copied Floobits diagnostics.");
+            }
+        });
+        saveButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                save();
+            }
+        });
+        resetButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                context.editor.stats.reset();
+                refresh();
+            }
+        });
+        // Only tick while the tab is on screen, so a hidden or closed window doesn't keep the timer alive.
+        panel.addHierarchyListener(new HierarchyListener() {
+            @Override
+            public void hierarchyChanged(HierarchyEvent e) {
+                if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) == 0) {
+                    return;
+                }
+                if (panel.isShowing()) {
+                    refresh();
+                    timer.start();
+                } else {
+                    timer.stop();
+                }
+            }
+        });
+    }
+
+    public JPanel getPanel() {
+        return panel;
+    }
+
+    public void refresh() {
+        EditorScheduler editor = context.editor;
+        summary.setText(String.format(" %s", editor));
+        model.setRowCount(0);
+        for (EditorStats.Timings t : editor.stats.getAll()) {
+            model.addRow(new Object[]{t.where, t.event, t.run.getCount(), millis(t.wait, 0.5),
+                    millis(t.wait, 0.99), String.format("%.1f", t.wait.getMaxMillis()),
+                    t.lock.getCount() == 0 ? "" : millis(t.lock, 0.99), millis(t.run, 0.5), millis(t.run, 0.99),
+                    String.format("%.1f", t.run.getMaxMillis())});
+        }
+    }
+
+    private static String millis(LatencyHistogram histogram, double fraction) {
+        return String.format("%.1f", histogram.getPercentileMillis(fraction));
+    }
+
+    private void save() {
+        final String json = context.editor.toJson();
+        final File file = new File(FilenameUtils.concat(Constants.baseDir, String.format("diagnostics-%s.json",
+                new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()))));
+        IOExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileUtils.write(file, json, "UTF-8");
+                } catch (Throwable e) {
+                    Flog.warn("Couldn't save diagnostics: %s", e);
+                    context.errorMessage(String.format("Couldn't save diagnostics to %s.", file.getPath()));
+                    return;
+                }
+                context.statusMessage(String.format("Saved Floobits diagnostics to %s.", file.getPath()));
+            }
+        });
+    }
+}
@@ -2,7 +2,6 @@ package floobits.windows;
 
 import com.intellij.icons.AllIcons;
 import com.intellij.openapi.actionSystem.*;
-import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.components.JBScrollPane;
 import floobits.actions.*;
@@ -152,8 +151,7 @@ public class FloobitsWindowForm {
                     }
                     @Override
                     public void update(AnActionEvent e) {
-                        HashMap<Integer, HashMap<String, LinkedList<RangeHighlighter>>> highlights = DocImpl.highlights;
-                        e.getPresentation().setEnabled(highlights.size() > 0);
+                        e.getPresentation().setEnabled(!DocImpl.highlights.isEmpty());
                     }
                 },
                 new AnAction(summonLabel, summonLabel, AllIcons.Ide.IncomingChangesOn) {
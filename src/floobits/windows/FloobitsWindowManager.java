@@ -23,10 +23,12 @@ public class FloobitsWindowManager {
     protected IContext context;
     protected ToolWindow toolWindow;
     protected FloobitsWindowForm chatForm;
+    protected DiagnosticsForm diagnosticsForm;
 
     public FloobitsWindowManager(ContextImpl context) {
        this.context = context;
        chatForm = new FloobitsWindowForm(context);
+       diagnosticsForm = new DiagnosticsForm(context);
        this.createChatWindow(context.project);
     }
 
@@ -36,6 +38,9 @@ public class FloobitsWindowManager {
         toolWindow.setIcon(IconLoader.getIcon("/icons/floo13.png"));
         Content content = ContentFactory.SERVICE.getInstance().createContent(chatForm.getChatPanel(), "", true);
         toolWindow.getContentManager().addContent(content);
+        Content diagnostics = ContentFactory.SERVICE.getInstance().createContent(diagnosticsForm.getPanel(),
+                "Diagnostics", false);
+        toolWindow.getContentManager().addContent(diagnostics);
         updateTitle();
     }
 